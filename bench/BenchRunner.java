@@ -0,0 +1,241 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// a small JMH-style microbenchmark runner: each benchmark is warmed up, then
+// timed over several measurement iterations, and the mean time per call is
+// reported and compared against a recorded baseline
+//
+// usage: BenchRunner-based main [-baseline file] [-record file] [-quick] [filter...]
+//   -baseline  compare against results recorded earlier, flagging regressions
+//   -record    write this run's results out as a new baseline
+//   -quick     fewer, shorter iterations, for checking everything still runs
+//              (too noisy to compare against a baseline, so it isn't)
+//   filter     only run benchmarks whose name contains one of these
+
+public class BenchRunner {
+    // slower than the baseline by more than this fraction counts as a regression
+    static final double REGRESSION_THRESHOLD = 0.25;
+
+    // a single benchmark at a single set of parameters
+    public interface Benchmark {
+        // called once before timing; not timed
+        void setup() throws Exception;
+        // the timed operation, results should go in the sink
+        void run(Sink sink) throws Exception;
+    }
+
+    // like JMH's Blackhole, keeps results live so the JIT can't drop the work
+    public static class Sink {
+        private int h;
+
+        public void consume(Object o) {
+            h ^= System.identityHashCode(o);
+        }
+
+        public void consume(int i) {
+            h ^= i;
+        }
+
+        public void consume(boolean b) {
+            h ^= b ? 1 : 0;
+        }
+
+        int value() {
+            return h;
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final String params;
+        final Benchmark benchmark;
+
+        Entry(String name, String params, Benchmark benchmark) {
+            this.name = name;
+            this.params = params;
+            this.benchmark = benchmark;
+        }
+
+        String key() {
+            return name + " " + params;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private int warmup_iterations = 5;
+    private int measure_iterations = 5;
+    private long iteration_ns = 200 * 1000 * 1000L;
+    private boolean quick = false;
+
+    private String baseline_file = null;
+    private String record_file = null;
+    private final List<String> filters = new ArrayList<String>();
+
+    public BenchRunner(String args[]) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-baseline") && i + 1 < args.length) {
+                baseline_file = args[++i];
+            } else if (args[i].equals("-record") && i + 1 < args.length) {
+                record_file = args[++i];
+            } else if (args[i].equals("-quick")) {
+                quick = true;
+                warmup_iterations = 1;
+                measure_iterations = 2;
+                iteration_ns = 20 * 1000 * 1000L;
+            } else {
+                filters.add(args[i]);
+            }
+        }
+    }
+
+    public void add(String name, String params, Benchmark benchmark) {
+        entries.add(new Entry(name, params, benchmark));
+    }
+
+    private boolean selected(Entry e) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String f : filters) {
+            if (e.name.contains(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void run() throws Exception {
+        Map<String, Double> baseline = readBaseline();
+        Map<String, Double> results = new HashMap<String, Double>();
+        List<String> order = new ArrayList<String>();
+        Sink sink = new Sink();
+        int regressions = 0;
+
+        System.out.println(String.format("%-28s %-26s %14s %10s %10s", "benchmark", "params", "ns/op", "+-", "vs base"));
+
+        for (Entry e : entries) {
+            if (!selected(e)) {
+                continue;
+            }
+
+            e.benchmark.setup();
+
+            for (int i = 0; i < warmup_iterations; i++) {
+                iteration(e.benchmark, sink);
+            }
+
+            double[] samples = new double[measure_iterations];
+            for (int i = 0; i < measure_iterations; i++) {
+                samples[i] = iteration(e.benchmark, sink);
+            }
+
+            double mean = 0;
+            for (double s : samples) {
+                mean += s;
+            }
+            mean /= samples.length;
+
+            double var = 0;
+            for (double s : samples) {
+                var += (s - mean) * (s - mean);
+            }
+            double stddev = samples.length > 1 ? Math.sqrt(var / (samples.length - 1)) : 0;
+
+            String vs = "";
+            Double base = baseline.get(e.key());
+            if (base != null) {
+                double change = (mean - base) / base;
+                vs = String.format("%+.1f%%", change * 100);
+                if (change > REGRESSION_THRESHOLD) {
+                    vs += " REGRESSION";
+                    regressions++;
+                }
+            }
+
+            System.out.println(String.format("%-28s %-26s %14.1f %10.1f %10s", e.name, e.params, mean, stddev, vs));
+
+            results.put(e.key(), mean);
+            order.add(e.key());
+        }
+
+        if (baseline_file != null && !quick) {
+            System.out.println(regressions + " regression(s) against " + baseline_file);
+        }
+
+        if (record_file != null) {
+            writeBaseline(order, results);
+        }
+
+        // so the sink can't be optimized away
+        if (sink.value() == 42) {
+            System.out.println();
+        }
+    }
+
+    // runs the benchmark repeatedly for about iteration_ns, returns ns/op
+    private double iteration(Benchmark b, Sink sink) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        int batch = 1;
+
+        do {
+            for (int i = 0; i < batch; i++) {
+                b.run(sink);
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (batch < 1024) {
+                batch *= 2;
+            }
+        } while (elapsed < iteration_ns);
+
+        return (double) elapsed / ops;
+    }
+
+    // lines of "<benchmark> <params> <ns/op>", '#' starts a comment
+    private Map<String, Double> readBaseline() throws IOException {
+        Map<String, Double> baseline = new HashMap<String, Double>();
+        if (baseline_file == null || quick) {
+            return baseline;
+        }
+
+        BufferedReader in = new BufferedReader(new FileReader(baseline_file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int last_space = line.lastIndexOf(' ');
+                baseline.put(line.substring(0, last_space).trim(), Double.parseDouble(line.substring(last_space + 1)));
+            }
+        } finally {
+            in.close();
+        }
+        return baseline;
+    }
+
+    private void writeBaseline(List<String> order, Map<String, Double> results) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(record_file));
+        try {
+            out.println("# <benchmark> <params> <ns/op>, recorded by BenchRunner -record");
+            out.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.arch")
+                    + ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+            for (String key : order) {
+                out.println(key + " " + String.format("%.1f", results.get(key)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
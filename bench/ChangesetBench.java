@@ -0,0 +1,177 @@
+import epl.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// microbenchmarks for the hot paths of the Changeset engine, across
+// document sizes and changeset sizes (number of scattered edits composed
+// into the changeset under test)
+// run with 'ant bench-run', which compares against bench/baseline.txt;
+// 'ant bench-record' rewrites the baseline
+
+public class ChangesetBench {
+    static final int[] DOC_SIZES = { 1024, 64 * 1024, 1024 * 1024, 10 * 1024 * 1024 };
+    static final int[] EDIT_COUNTS = { 1, 100, 1000 };
+
+    public static void main(String args[]) throws Exception {
+        BenchRunner runner = new BenchRunner(args);
+
+        for (int doc_size : DOC_SIZES) {
+            for (int edit_count : EDIT_COUNTS) {
+                addChangesetBenchmarks(runner, doc_size, edit_count);
+            }
+            addEditBenchmarks(runner, doc_size);
+        }
+
+        runner.run();
+    }
+
+    static String size(int n) {
+        if (n >= 1024 * 1024) {
+            return (n / (1024 * 1024)) + "MB";
+        }
+        return (n / 1024) + "KB";
+    }
+
+    // everything that operates on a changeset of edit_count scattered edits
+    static void addChangesetBenchmarks(BenchRunner runner, int doc_size, int edit_count) {
+        final Fixture f = new Fixture(doc_size, edit_count);
+        String params = "doc=" + size(doc_size) + ",edits=" + edit_count;
+
+        runner.add("parse", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                // parsing is lazy, walking the ops makes it happen
+                sink.consume(new Changeset(f.a_str).afterThisEdit());
+            }
+        });
+
+        runner.add("toString", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                // packing is lazy too, and cached, so start from decoded ops
+                sink.consume(Changeset.compose(f.a, f.identity_after_a).toString());
+            }
+        });
+
+        runner.add("applyToText(String)", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(f.a.applyToText(f.text_str));
+            }
+        });
+
+        runner.add("applyToText(Rope)", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(f.a.applyToText(f.text));
+            }
+        });
+
+        runner.add("compose", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(Changeset.compose(f.a, f.a_then));
+            }
+        });
+
+        runner.add("follow", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(Changeset.follow(f.a, f.b, false));
+            }
+        });
+
+        runner.add("translateMarker", params, new BenchRunner.Benchmark() {
+            Marker m;
+            public void setup() throws Exception {
+                f.setup();
+                // past all the edits, so the whole changeset is walked
+                m = new Marker(f.text.length() - 1, true, true);
+            }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(f.a.translateMarker(m));
+            }
+        });
+    }
+
+    static void addEditBenchmarks(BenchRunner runner, int doc_size) {
+        final Fixture f = new Fixture(doc_size, 1);
+        String params = "doc=" + size(doc_size);
+
+        runner.add("simpleEdit(String)", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(Changeset.simpleEdit(f.text_str, f.text_str.length() / 2, 1, "abc"));
+            }
+        });
+
+        runner.add("simpleEdit(Rope)", params, new BenchRunner.Benchmark() {
+            public void setup() throws Exception { f.setup(); }
+            public void run(BenchRunner.Sink sink) throws Exception {
+                sink.consume(Changeset.simpleEdit(f.text, f.text.length() / 2, 1, "abc"));
+            }
+        });
+    }
+
+    // a document and some changesets on it, built on first use so only the
+    // selected benchmarks pay for it
+    static class Fixture {
+        final int doc_size;
+        final int edit_count;
+        boolean ready = false;
+
+        String text_str;
+        Rope text;
+        // edit_count scattered edits to text
+        Changeset a;
+        String a_str;
+        // more edits following on from a
+        Changeset a_then;
+        Changeset identity_after_a;
+        // edit_count different edits to text, concurrent with a
+        Changeset b;
+
+        Fixture(int doc_size, int edit_count) {
+            this.doc_size = doc_size;
+            this.edit_count = edit_count;
+        }
+
+        void setup() throws ChangesetException {
+            if (ready) {
+                return;
+            }
+            Random r = new Random(doc_size * 31 + edit_count);
+
+            StringBuilder sb = new StringBuilder(doc_size);
+            for (int i = 0; i < doc_size - 1; i++) {
+                sb.append(r.nextInt(40) == 0 ? '\n' : (char) ('a' + r.nextInt(26)));
+            }
+            sb.append('\n');
+            text_str = sb.toString();
+            text = Rope.of(text_str);
+
+            a = scatteredEdits(text, edit_count, r);
+            a_str = a.toString();
+            a_then = scatteredEdits(a.applyToText(text), edit_count, r);
+            identity_after_a = Changeset.identity(a.applyToText(text).length());
+            b = scatteredEdits(text, edit_count, r);
+
+            ready = true;
+        }
+    }
+
+    static Changeset scatteredEdits(Rope text, int edit_count, Random r) throws ChangesetException {
+        List<Changeset> edits = new ArrayList<Changeset>(edit_count);
+        for (int i = 0; i < edit_count; i++) {
+            int pos = r.nextInt(text.length() - 1);
+            int removing = r.nextInt(Math.min(8, text.length() - 1 - pos));
+            String ins = (i % 5 == 0) ? "line " + i + "\n" : "w" + i;
+            Changeset cs = Changeset.simpleEdit(text, pos, removing, ins);
+            text = cs.applyToText(text);
+            edits.add(cs);
+        }
+        return Changeset.composeAll(edits);
+    }
+}
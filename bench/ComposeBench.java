@@ -0,0 +1,130 @@
+import epl.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// compares folding a burst of local edits into one changeset pairwise with
+// Changeset.compose (what Pad.makeChangeInternal did per edit) against
+// Changeset.composeAll and its streaming Composer
+// run with 'ant bench-compose'
+
+public class ComposeBench {
+    static final int WARMUP_ROUNDS = 3;
+    static final int ROUNDS = 5;
+
+    public static void main(String args[]) throws ChangesetException {
+        int[] doc_sizes = { 10 * 1024, 1024 * 1024 };
+        int[] edit_counts = { 100, 1000, 5000 };
+
+        System.out.println("pattern    doc_size  edits   pairwise_ms  composeAll_ms  composer_ms  speedup");
+
+        for (int doc_size : doc_sizes) {
+            for (int edit_count : edit_counts) {
+                run("typing", doc_size, edit_count, true);
+                run("scattered", doc_size, edit_count, false);
+            }
+        }
+    }
+
+    static void run(String pattern, int doc_size, int edit_count, boolean typing) throws ChangesetException {
+        final Rope text = makeText(doc_size, new Random(doc_size));
+        final List<Changeset> edits = makeEdits(text, edit_count, typing, new Random(doc_size + edit_count));
+
+        Task pairwise_task = new Task() {
+            public Changeset run() throws ChangesetException {
+                Changeset acc = Changeset.identity(text.length());
+                for (Changeset e : edits) {
+                    acc = Changeset.compose(acc, e);
+                }
+                return acc;
+            }
+        };
+
+        // make sure they agree before timing anything
+        if (!pairwise_task.run().toString().equals(Changeset.composeAll(edits).toString())) {
+            throw new ChangesetException("composeAll disagrees with pairwise compose");
+        }
+
+        double pairwise = time(pairwise_task);
+
+        double all = time(new Task() {
+            public Changeset run() throws ChangesetException {
+                return Changeset.composeAll(edits);
+            }
+        });
+
+        double composer = time(new Task() {
+            public Changeset run() throws ChangesetException {
+                Changeset.Composer c = new Changeset.Composer();
+                for (Changeset e : edits) {
+                    c.add(e);
+                }
+                return c.result();
+            }
+        });
+
+        System.out.println(String.format("%-10s %8d  %5d   %11.2f  %13.2f  %11.2f  %6.1fx",
+                    pattern, doc_size, edit_count, pairwise, all, composer, pairwise / all));
+    }
+
+    static Rope makeText(int doc_size, Random r) {
+        StringBuilder sb = new StringBuilder(doc_size);
+        for (int i = 0; i < doc_size - 1; i++) {
+            sb.append(r.nextInt(40) == 0 ? '\n' : (char) ('a' + r.nextInt(26)));
+        }
+        sb.append('\n');
+        return Rope.of(sb.toString());
+    }
+
+    static List<Changeset> makeEdits(Rope text, int edit_count, boolean typing, Random r) throws ChangesetException {
+        List<Changeset> edits = new ArrayList<Changeset>(edit_count);
+        int pos = r.nextInt(text.length());
+
+        for (int i = 0; i < edit_count; i++) {
+            Changeset cs;
+            if (typing) {
+                // one character at a time, with the odd backspace
+                if (i % 10 == 9 && pos > 0) {
+                    pos--;
+                    cs = Changeset.simpleEdit(text, pos, 1, "");
+                } else {
+                    cs = Changeset.simpleEdit(text, pos, 0, (i % 30 == 29) ? "\n" : "x");
+                    pos++;
+                }
+            } else {
+                int p = r.nextInt(text.length() - 1);
+                int removing = r.nextInt(Math.min(4, text.length() - 1 - p));
+                cs = Changeset.simpleEdit(text, p, removing, "y" + i);
+            }
+            text = cs.applyToText(text);
+            edits.add(cs);
+        }
+
+        return edits;
+    }
+
+    interface Task {
+        Changeset run() throws ChangesetException;
+    }
+
+    static int sink = 0;
+
+    // best of ROUNDS, in ms
+    static double time(Task t) throws ChangesetException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            t.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            Changeset result = t.run();
+            long elapsed = System.nanoTime() - start;
+            // keep the result live
+            sink += result.isIdentity() ? 1 : 0;
+            best = Math.min(best, elapsed);
+        }
+        return best / 1e6;
+    }
+}
@@ -0,0 +1,92 @@
+package epl;
+
+import java.io.File;
+import java.util.Random;
+
+// what journaling costs a Pad's local edits, and how long a restarted
+// process takes to pick its state back up from the journal, by how much log
+// there is to replay onto the snapshot
+// run with 'ant bench-journal', optionally
+// -Dbench.args="-edits 100000 -doc 262144 -dir /tmp/epl-journal"
+
+public class JournalBench {
+    int edits = 50000;
+    int doc_size = 64 * 1024;
+    File dir = new File(System.getProperty("java.io.tmpdir"), "epl-journal-bench");
+
+    public static void main(String args[]) throws Exception {
+        JournalBench b = new JournalBench();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-edits")) {
+                b.edits = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-doc")) {
+                b.doc_size = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-dir")) {
+                b.dir = new File(args[i + 1]);
+            }
+        }
+
+        System.out.println(b.edits + " local edits, " + (b.doc_size / 1024) + "KB text, in " + b.dir);
+        System.out.println("journal        edits/s   records   snapshots   recover_ms");
+
+        // once each to warm up, then for real
+        for (int round = 0; round < 2; round++) {
+            b.run(false, round == 1);
+            b.run(true, round == 1);
+        }
+    }
+
+    void run(boolean journaling, boolean show) throws Exception {
+        if (dir.isDirectory()) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+        }
+
+        Pad pad = new Pad(null, "", "t.bench", "benchpad", "bench");
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder(doc_size);
+        for (int i = 0; i < doc_size - 1; i++) {
+            sb.append(r.nextInt(40) == 0 ? '\n' : (char) ('a' + r.nextInt(26)));
+        }
+        pad.appendText(sb.toString());
+
+        PadJournal journal = null;
+        if (journaling) {
+            journal = new PadJournal(dir);
+            pad.setJournal(journal);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            int len = pad.getState().client_text.length();
+            pad.makeChange(r.nextInt(len), r.nextInt(2), "x");
+        }
+        long edit_ns = System.nanoTime() - start;
+
+        double recover_ms = 0;
+        long records = 0;
+        long snapshots = 0;
+        if (journaling) {
+            records = journal.recordCount();
+            snapshots = journal.snapshotCount();
+            journal.close();
+
+            start = System.nanoTime();
+            Pad restarted = new Pad(null, "", "t.bench", "benchpad", "bench");
+            PadJournal reopened = new PadJournal(dir);
+            restarted.setJournal(reopened);
+            recover_ms = (System.nanoTime() - start) / 1e6;
+
+            if (!restarted.getState().client_text.equals(pad.getState().client_text)) {
+                throw new RuntimeException("recovered text differs");
+            }
+            reopened.close();
+        }
+
+        if (show) {
+            System.out.println(String.format("%-8s %13.0f %9d %11d %12.1f",
+                journaling ? "on" : "off", edits / (edit_ns / 1e9), records, snapshots, recover_ms));
+        }
+    }
+}
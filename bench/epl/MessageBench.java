@@ -0,0 +1,123 @@
+package epl;
+
+import org.json.*;
+import java.lang.management.ManagementFactory;
+
+// encoding the messages a Pad sends all the time and decoding the ones it
+// gets, as org.json trees (what Pad used to do) against Messages, in
+// messages per second and bytes allocated per message
+// in package epl to get at Messages
+// run with 'ant bench-messages', optionally -Dbench.args="-count 500000 -edit 40"
+
+public class MessageBench {
+    int count = 200000;
+    // characters inserted by each changeset
+    int edit = 8;
+
+    public static void main(String args[]) throws Exception {
+        MessageBench b = new MessageBench();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-count")) {
+                b.count = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-edit")) {
+                b.edit = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            sb.append((char) ('a' + i % 26));
+            if (i % 60 == 59) {
+                sb.append('\n');
+            }
+        }
+        Rope text = Rope.of(sb.append('\n').toString());
+        StringBuilder ins = new StringBuilder();
+        for (int i = 0; i < b.edit; i++) {
+            ins.append(i % 10 == 9 ? '\n' : 'x');
+        }
+        Changeset cs = Changeset.simpleEdit(text, 1234, 2, ins.toString());
+
+        // org.json's key order is its hash table's, so compare reparsed
+        String old_text = new JSONObject(b.oldUserChanges(5, cs)).toString();
+        if (!old_text.equals(new JSONObject(Messages.userChanges(new StringBuilder(), 5, cs).toString()).toString())) {
+            throw new RuntimeException("USER_CHANGES encodings differ");
+        }
+
+        System.out.println(b.count + " messages, " + b.edit + " char edits");
+        System.out.println("message          codec      msgs/s   bytes/msg");
+
+        // once to warm up, then for real
+        for (int round = 0; round < 2; round++) {
+            boolean show = (round == 1);
+            b.encode(cs, false, show);
+            b.encode(cs, true, show);
+            String new_changes = SnapshotBench.newChanges(cs, 5).toString();
+            b.decode(new_changes, "NEW_CHANGES", false, show);
+            b.decode(new_changes, "NEW_CHANGES", true, show);
+            String cursor = b.cursorMessage();
+            b.decode(cursor, "cursor chat", false, show);
+            b.decode(cursor, "cursor chat", true, show);
+        }
+    }
+
+    String oldUserChanges(long base_rev, Changeset cs) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("type", "USER_CHANGES");
+        data.put("baseRev", base_rev);
+        data.put("changeset", cs.toString());
+        JSONObject apool = new JSONObject();
+        apool.put("numToAttrib", new JSONArray());
+        apool.put("nextNum", 0);
+        data.put("apool", apool);
+        return new JSONObject().put("component", "pad").put("type", "COLLABROOM").put("data", data).toString();
+    }
+
+    String cursorMessage() throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("type", "CHAT_MESSAGE");
+        data.put("userId", "a.other");
+        data.put("userName", "other");
+        data.put("text", "!cursor!1234!1234");
+        data.put("time", 1350000000000L);
+        return new JSONObject().put("type", "COLLABROOM").put("data", data).toString();
+    }
+
+    void encode(Changeset cs, boolean streaming, boolean show) throws Exception {
+        StringBuilder buf = new StringBuilder(256);
+        long total = 0;
+        long alloc = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String s = streaming ? Messages.userChanges(buf, i, cs).toString() : oldUserChanges(i, cs);
+            total += s.length();
+        }
+        report(show, "USER_CHANGES", streaming, System.nanoTime() - start, allocated() - alloc, total);
+    }
+
+    void decode(String text, String name, boolean streaming, boolean show) throws Exception {
+        long total = 0;
+        long alloc = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Messages.CollabRoom m = streaming ? Messages.decode(text) : Messages.collabRoom(new JSONObject(text));
+            total += m.type.length();
+        }
+        report(show, name, streaming, System.nanoTime() - start, allocated() - alloc, total);
+    }
+
+    void report(boolean show, String name, boolean streaming, long ns, long bytes, long sink) {
+        if (show) {
+            System.out.println(String.format("%-16s %-8s %10.0f %11d",
+                name, streaming ? "streamed" : "org.json", count / (ns / 1e9), bytes / count));
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
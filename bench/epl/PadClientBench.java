@@ -0,0 +1,151 @@
+package epl;
+
+import org.json.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URL;
+import java.util.logging.Logger;
+
+// what each of many Pads costs in heap and threads, standalone (each in push
+// mode on its own thread, with its own logger and server log handler and the
+// default inbox, which is what connect() and startPush() set up) against the
+// pads of a PadClient, on a pool and (on JDK 21 on) on a virtual thread each,
+// and how long it takes them all to take a remote change
+// edited/pad is the heap again once every pad has made a burst of local
+// edits and taken the change on top of them, composing on its own thread
+// as it commits and follows, so it counts anything kept per thread for that
+// sockets can't be opened here, the pads are fed through a PadConnection
+// that doesn't send anything; a real socket adds the same to both
+// in package epl to feed the pads messages without a server
+// run with 'ant bench-client', optionally
+// -Dbench.args="-pads 20000 -text 4096 -edits 16 -hosting pool,virtual"
+// threads/pad only counts platform threads
+
+public class PadClientBench {
+    int pad_count = 1000;
+    int text_size = 1024;
+    int edits = 16;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String[] hostings = { "standalone", "pool", "virtual" };
+
+    public static void main(String args[]) throws Exception {
+        PadClientBench b = new PadClientBench();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-pads")) {
+                b.pad_count = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-text")) {
+                b.text_size = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-edits")) {
+                b.edits = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-threads")) {
+                b.threads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-hosting")) {
+                b.hostings = args[i + 1].split(",");
+            }
+        }
+
+        System.out.println(b.pad_count + " pads, " + b.text_size + " chars each, " + b.edits + " local edits each, "
+            + b.threads + " client threads");
+        System.out.println("hosting      heap/pad   edited/pad   threads/pad   change_to_all_ms");
+
+        for (String hosting : b.hostings) {
+            if (hosting.equals("virtual") && !VirtualThreads.available()) {
+                System.out.println("virtual    not available on this JVM");
+            } else {
+                b.run(hosting);
+            }
+        }
+    }
+
+    void run(String hosting) throws Exception {
+        URL url = new URL("http://localhost:9001/");
+        StringBuilder sb = new StringBuilder(text_size);
+        for (int i = 0; i < text_size - 1; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String text = sb.append('\n').toString();
+
+        long heap_before = usedHeap();
+        int threads_before = Thread.activeCount();
+
+        boolean shared = !hosting.equals("standalone");
+        PadClient client = null;
+        if (shared) {
+            client = new PadClient(url, "", null, "sid", hosting.equals("virtual") ? PadClient.VIRTUAL_THREADS : threads);
+        }
+        Pad[] pads = new Pad[pad_count];
+
+        for (int i = 0; i < pad_count; i++) {
+            Pad pad;
+            if (shared) {
+                pad = client.newPad("bench" + i);
+            } else {
+                pad = new Pad(url, "", null, "bench" + i, "sid");
+                // as connect() would
+                Logger logger = Logger.getAnonymousLogger();
+                logger.addHandler(Pad.serverLogHandler(url, "sid", pad));
+                pad.setClient(null, logger);
+                pad.startPush();
+            }
+
+            pad.connect(new PadConnection(pad) {
+                @Override
+                public void send(JSONObject json) {
+                }
+            });
+            pad.onMessage(SnapshotBench.clientVars(text));
+            pads[i] = pad;
+        }
+
+        long heap = usedHeap() - heap_before;
+        int thread_count = Thread.activeCount() - threads_before;
+
+        // a burst of typing all over each pad, committed on its own thread
+        for (Pad pad : pads) {
+            for (int i = 0; i < edits; i++) {
+                int len = pad.getState().client_text.length();
+                pad.makeChange((int) ((long) len * i / edits), 0, "edit" + i);
+            }
+        }
+
+        // one remote change to every pad, until they've all got it
+        long start = System.nanoTime();
+        Changeset cs = Changeset.simpleEdit(Rope.of(text), 0, 0, "x");
+        JSONObject new_changes = SnapshotBench.newChanges(cs, 1);
+        for (Pad pad : pads) {
+            pad.onMessage(new_changes);
+        }
+        waitFor(pads, 1);
+        long change_ns = System.nanoTime() - start;
+        long edited_heap = usedHeap() - heap_before;
+
+        System.out.println(String.format("%-10s %10d %12d %13.3f %18.1f",
+            hosting,
+            heap / pad_count, edited_heap / pad_count, (double) thread_count / pad_count, change_ns / 1e6));
+
+        if (shared) {
+            client.close();
+        } else {
+            for (Pad pad : pads) {
+                pad.disconnect();
+            }
+        }
+    }
+
+    static void waitFor(Pad[] pads, long rev) throws InterruptedException {
+        for (Pad pad : pads) {
+            while (pad.getState().server_rev < rev) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,236 @@
+package epl;
+
+import org.json.*;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// read latency of Pad.getState() from several reader threads while another
+// thread keeps the pad busy receiving remote changes, comparing the lock-free
+// snapshot read against taking the pad's lock around it (which is what
+// getState() used to do)
+// the markers row reads with that many markers registered and a change per
+// update(), so every update moves them all and publishes them again while
+// the readers are copying them out
+// in package epl to feed the pad messages without a server
+// run with 'ant bench-snapshot', optionally
+// -Dbench.args="-seconds 5 -readers 4 -batch 50 -markers 1000"
+
+public class SnapshotBench {
+    int seconds = 3;
+    int readers = 2;
+    // remote changes queued per update(), update() holds the lock throughout
+    int batch = 50;
+    int doc_size = 64 * 1024;
+    int marker_count = 1000;
+
+    public static void main(String args[]) throws Exception {
+        SnapshotBench b = new SnapshotBench();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-seconds")) {
+                b.seconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-readers")) {
+                b.readers = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-batch")) {
+                b.batch = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-markers")) {
+                b.marker_count = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-doc")) {
+                b.doc_size = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        System.out.println(b.readers + " readers, batches of " + b.batch + " remote changes, " + (b.doc_size / 1024) + "KB text");
+        System.out.println("read       reads/s      p50_ns     p99_ns   p99.9_ns  p99.99_ns     max_ns   writer_revs/s");
+
+        // once each to warm up, then for real
+        b.run(false, false, true);
+        b.run(true, false, true);
+        b.run(false, true, true);
+        b.run(false, false, false);
+        b.run(true, false, false);
+        b.run(false, true, false);
+    }
+
+    void run(final boolean locked, boolean with_markers, boolean warmup) throws Exception {
+        final Pad pad = new Pad(null, "", "t.bench", "benchpad", "bench");
+        pad.connect(new PadConnection(pad) {
+            @Override
+            public void send(JSONObject json) {
+            }
+        });
+
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder(doc_size);
+        for (int i = 0; i < doc_size - 1; i++) {
+            sb.append(r.nextInt(40) == 0 ? '\n' : (char) ('a' + r.nextInt(26)));
+        }
+        sb.append('\n');
+        final String initial = sb.toString();
+
+        pad.onMessage(clientVars(initial));
+
+        final int writer_batch = with_markers ? 1 : batch;
+        if (with_markers) {
+            for (int i = 0; i < marker_count; i++) {
+                pad.registerMarker((int) ((long) (doc_size - 1) * i / marker_count), i % 2 == 0, true);
+            }
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final long[] revs = new long[1];
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                Random r = new Random(2);
+                Rope text = Rope.of(initial);
+                long rev = 0;
+                try {
+                    while (!stop.get()) {
+                        for (int i = 0; i < writer_batch; i++) {
+                            int pos = r.nextInt(text.length());
+                            int removing = r.nextInt(Math.min(4, text.length() - pos));
+                            Changeset cs = Changeset.simpleEdit(text, pos, removing, "w" + rev);
+                            text = cs.applyToText(text);
+                            pad.onMessage(newChanges(cs, ++rev));
+                        }
+                        pad.update(false, true);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                revs[0] = rev;
+            }
+        });
+
+        Thread[] reader_threads = new Thread[readers];
+        final long[][] histograms = new long[readers][];
+        final long[] reads = new long[readers];
+
+        for (int t = 0; t < readers; t++) {
+            final int idx = t;
+            histograms[t] = new long[BUCKETS];
+            reader_threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    long[] h = histograms[idx];
+                    long n = 0;
+                    int sink = 0;
+                    while (!stop.get()) {
+                        long start = System.nanoTime();
+                        TextState ts;
+                        if (locked) {
+                            synchronized (pad) {
+                                ts = pad.getState();
+                            }
+                        } else {
+                            ts = pad.getState();
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        sink += ts.client_text.length();
+                        h[bucket(elapsed)]++;
+                        n++;
+                    }
+                    reads[idx] = n + (sink == 42 ? 1 : 0);
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread t : reader_threads) {
+            t.start();
+        }
+
+        long ms = warmup ? 1000 : seconds * 1000L;
+        Thread.sleep(ms);
+        stop.set(true);
+
+        writer.join();
+        for (Thread t : reader_threads) {
+            t.join();
+        }
+
+        if (warmup) {
+            return;
+        }
+
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int t = 0; t < readers; t++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] += histograms[t][i];
+            }
+            total += reads[t];
+        }
+
+        System.out.println(String.format("%-8s %10.0f %11d %10d %10d %10d %10d %15.0f",
+            locked ? "locked" : (with_markers ? "markers" : "snapshot"),
+            total * 1000.0 / ms,
+            percentile(merged, 0.5), percentile(merged, 0.99), percentile(merged, 0.999), percentile(merged, 0.9999), percentile(merged, 1.0),
+            revs[0] * 1000.0 / ms));
+    }
+
+    // ********** log-linear latency histogram, 8 buckets per power of two
+
+    static final int BUCKETS = 512;
+
+    static int bucket(long ns) {
+        if (ns < 16) {
+            return (int) Math.max(ns, 0);
+        }
+        int top = 63 - Long.numberOfLeadingZeros(ns);
+        return 16 + (top - 4) * 8 + (int) ((ns >>> (top - 3)) & 7);
+    }
+
+    // the lower bound of bucket i
+    static long bucketValue(int i) {
+        if (i < 16) {
+            return i;
+        }
+        int top = (i - 16) / 8 + 4;
+        return (8L + (i - 16) % 8) << (top - 3);
+    }
+
+    static long percentile(long[] h, double p) {
+        long total = 0;
+        for (long c : h) {
+            total += c;
+        }
+        long want = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < h.length; i++) {
+            seen += h[i];
+            if (seen >= want && h[i] > 0) {
+                return bucketValue(i);
+            }
+        }
+        return 0;
+    }
+
+    // ********** messages
+
+    static JSONObject clientVars(String text) throws JSONException {
+        JSONObject collab_client_vars = new JSONObject();
+        collab_client_vars.put("initialAttributedText", new JSONObject().put("text", text));
+        collab_client_vars.put("rev", 0);
+
+        JSONObject data = new JSONObject();
+        data.put("serverTimestamp", System.currentTimeMillis());
+        data.put("userId", "a.bench");
+        data.put("readonly", false);
+        data.put("readOnlyId", "r.bench");
+        data.put("collab_client_vars", collab_client_vars);
+
+        return new JSONObject().put("type", "CLIENT_VARS").put("data", data);
+    }
+
+    static JSONObject newChanges(Changeset cs, long rev) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("type", "NEW_CHANGES");
+        data.put("newRev", rev);
+        data.put("changeset", cs.toString());
+        data.put("author", "a.other");
+        data.put("currentTime", rev);
+        data.put("timeDelta", JSONObject.NULL);
+
+        return new JSONObject().put("type", "COLLABROOM").put("data", data);
+    }
+}
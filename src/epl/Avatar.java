@@ -21,6 +21,16 @@ public class Avatar {
         end_marker = new Marker(0,true,false);
     }
 
+    // a detached copy, as handed out by Pad.getCursors()
+    Avatar(Avatar other) {
+        this.user_id = other.user_id;
+        this.user_name = other.user_name;
+        this.color_id = other.color_id;
+        this.last_update_time = other.last_update_time;
+        this.start_marker = other.start_marker;
+        this.end_marker = other.end_marker;
+    }
+
     void setUserName(String user_name) {
         this.user_name = user_name;
     }
@@ -44,30 +54,21 @@ public class Avatar {
         }
     }
 
-    void adjustForChangeset(String user_id, Changeset cs, long time) {
-        if (user_id.equals(this.user_id)) {
-            adjustForOwnChangeset(cs, time);
-        } else {
-            adjustForOtherChangeset(cs, time);
-        }
-    }
-
-    private void adjustForOwnChangeset(Changeset cs, long time) {
-        // assume that there is now just a caret after the change
-        // (at the start of the implicitly retained text)
+    // after our own change there's just a caret after it (at the start of
+    // the implicitly retained text), the caller works out where that is
+    void adjustForOwnEdit(Marker after, long time) {
         if (time >= last_update_time)  {
-            start_marker = end_marker = cs.afterThisEdit();
+            start_marker = end_marker = after;
             last_update_time = time;
         }
     }
 
-    private void adjustForOtherChangeset(Changeset cs, long time) {
-        if (time >= last_update_time ) {
-            // assume normal marker translation as caused by another
-            start_marker = cs.translateMarker(start_marker);
-            end_marker = cs.translateMarker(end_marker);
-            last_update_time = time;
-        }
+    // moved along by someone else's changes, which Pad does for all the
+    // avatars (and its markers) at once, see Changeset.translateMarkers()
+    void moveTo(Marker start, Marker end, long time) {
+        start_marker = start;
+        end_marker = end;
+        last_update_time = time;
     }
 
     public long getTime() {
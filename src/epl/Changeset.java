@@ -25,22 +25,43 @@
 
 package epl;
 
-import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
 public class Changeset {
-    String original_string;
+    // packed form, built lazily by toString() if we didn't start from it
+    private String original_string;
 
     static final Pattern headerRegex = Pattern.compile("Z:([0-9a-z]+)([><])([0-9a-z]+)");
-    static final Pattern opRegex = Pattern.compile("((?:\\*[0-9a-z]+)*)(?:\\|([0-9a-z]+))?([-+=])([0-9a-z]+)|\\?");
 
     int oldLen;
     int newLen;
-    String ops;
     String charBank;
 
+    // The ops are kept in two forms, either of which may be missing until
+    // it is first needed: the packed op string, and the ops decoded once into
+    // OP_SIZE ints apiece (see decodeOps()).  Every algorithm here walks the
+    // decoded form, so a changeset is only ever parsed once however many
+    // times it is applied, composed or followed.
+    private String ops;
+    private volatile int[] opData;
+    private int opCount;
+    private String[] attribPool;
+
+    static final int OP_SIZE = 4;
+    static final int OP_OPCODE = 0;
+    static final int OP_CHARS = 1;
+    static final int OP_LINES = 2;
+    static final int OP_ATTRIBS = 3;    // index into attribPool
+
+    // attribPool for changesets that only use the empty attribs
+    static final String[] NO_ATTRIBS = new String[] { "" };
+
     public Changeset(String s) throws ChangesetException {
         original_string = s;
         unpack();
@@ -51,8 +72,16 @@ public class Changeset {
         this.newLen = newLen;
         this.ops = newOps;
         this.charBank = charBank;
+    }
 
-        pack();
+    // takes ownership of opData and attribPool
+    Changeset(int oldLen, int newLen, int[] opData, int opCount, String[] attribPool, String charBank) {
+        this.oldLen = oldLen;
+        this.newLen = newLen;
+        this.opCount = opCount;
+        this.attribPool = attribPool;
+        this.opData = opData;
+        this.charBank = charBank;
     }
 
     static public Changeset identity(int len) {
@@ -60,7 +89,13 @@ public class Changeset {
     }
 
     public boolean isIdentity() {
-        return (ops.length() == 0 && oldLen == newLen);
+        if (oldLen != newLen) {
+            return false;
+        }
+        if (ops != null) {
+            return ops.length() == 0;
+        }
+        return opCount == 0;
     }
 
     static public Changeset simpleEdit(String whole_old_s, int pos, int removing, String new_s) throws ChangesetException {
@@ -82,6 +117,44 @@ public class Changeset {
         return new Changeset(oldLen, newLen, assem.toString(), new_s);
     }
 
+    static public Changeset simpleEdit(Rope whole_old_s, int pos, int removing, String new_s) throws ChangesetException {
+
+        SmartOpAssembler assem = new SmartOpAssembler();
+        int oldLen = whole_old_s.length();
+        int new_s_len = new_s.length();
+        int newLen = oldLen - removing + new_s_len;
+
+        if (removing >= oldLen) {
+            throw new ChangesetException("removing too much ("+removing+">="+oldLen+")");
+        }
+
+        assem.appendOpWithText('=', whole_old_s, 0, pos);
+        assem.appendOpWithText('-', whole_old_s, pos, pos + removing);
+        assem.appendOpWithText('+', new_s, 0, new_s_len);
+        assem.endDocument();
+
+        return new Changeset(oldLen, newLen, assem.toString(), new_s);
+    }
+
+    // one edit taking old_s to new_s, replacing whatever's between what they
+    // have in common at either end; no smarter than that
+    static public Changeset diff(Rope old_s, Rope new_s) throws ChangesetException {
+        String a = old_s.toString();
+        String b = new_s.toString();
+        int max = Math.min(a.length(), b.length());
+
+        int prefix = 0;
+        while (prefix < max && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        return simpleEdit(old_s, prefix, a.length() - prefix - suffix, b.substring(prefix, b.length() - suffix));
+    }
+
     // base 36
     public static int parseNum(String s, int start, int end) throws ChangesetException {
         String digits = s.substring(start, end);
@@ -122,6 +195,7 @@ public class Changeset {
         int opsEnd = cs.indexOf("$");
         if (opsEnd < 0) opsEnd = cs.length();
         ops = cs.substring(opsStart, opsEnd);
+        // ops are decoded on first use
 
         if (opsEnd+1 < cs.length()) {
             charBank = cs.substring(opsEnd+1);
@@ -130,19 +204,94 @@ public class Changeset {
         }
     }
 
-    private void pack() {
+    private String pack() {
         StringBuilder cs = new StringBuilder();
 
         cs.append("Z:");
         appendNum(cs, oldLen);
         appendSignedNum(cs, newLen-oldLen);
-        cs.append(ops);
+        cs.append(ops());
         cs.append('$');
         if (charBank != null && charBank.length() > 0) {
             cs.append(charBank);
         }
 
-        original_string = cs.toString();
+        return cs.toString();
+    }
+
+    // the packed op string, encoded from opData if we don't have it yet
+    String ops() {
+        String s = ops;
+        if (s == null) {
+            int[] data = opData;
+            String[] pool = attribPool;
+            StringBuilder sb = new StringBuilder(opCount * 4);
+
+            for (int i = 0; i < opCount * OP_SIZE; i += OP_SIZE) {
+                Operation.append(sb, pool[data[i+OP_ATTRIBS]], data[i+OP_LINES], (char) data[i+OP_OPCODE], data[i+OP_CHARS]);
+            }
+
+            ops = s = sb.toString();
+        }
+        return s;
+    }
+
+    // the decoded ops, decoding the op string if this is the first use
+    private int[] opData() {
+        int[] data = opData;
+        if (data == null) {
+            decodeOps();
+            data = opData;
+        }
+        return data;
+    }
+
+    private void decodeOps() {
+        OpDecoder d = new OpDecoder(ops);
+        int[] data = new int[8 * OP_SIZE];
+        String[] pool = NO_ATTRIBS;
+        int poolSize = 1;
+        int count = 0;
+
+        while (d.next()) {
+            if (count * OP_SIZE == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+
+            int attribIdx = 0;
+            if (d.attribStart != d.attribEnd) {
+                String attribs = d.attribs();
+                attribIdx = indexOf(pool, poolSize, attribs);
+                if (attribIdx < 0) {
+                    if (poolSize == pool.length) {
+                        pool = Arrays.copyOf(pool, pool.length + 4);
+                    }
+                    attribIdx = poolSize;
+                    pool[poolSize++] = attribs;
+                }
+            }
+
+            int i = count * OP_SIZE;
+            data[i+OP_OPCODE] = d.opcode;
+            data[i+OP_CHARS] = d.chars;
+            data[i+OP_LINES] = d.lines;
+            data[i+OP_ATTRIBS] = attribIdx;
+            count++;
+        }
+
+        opCount = count;
+        attribPool = pool;
+        // publishes the above
+        opData = data;
+    }
+
+    private static int indexOf(String[] pool, int poolSize, String attribs) {
+        for (int i = 0; i < poolSize; i++) {
+            if (pool[i].equals(attribs)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     // an immutable object representing an edit operation
@@ -161,7 +310,11 @@ public class Changeset {
 
         public String toString() {
             StringBuilder sb = new StringBuilder();
+            append(sb, attribs, lines, opcode, chars);
+            return sb.toString();
+        }
 
+        public static void append(StringBuilder sb, String attribs, int lines, char opcode, int chars) {
             sb.append(attribs);
             if (lines > 0) {
                 sb.append('|');
@@ -169,12 +322,14 @@ public class Changeset {
             }
             sb.append(opcode);
             appendNum(sb, chars);
-
-            return sb.toString();
         }
 
         public String explain(String bank, int bank_cur) {
-            switch (this.opcode) {
+            return explain(opcode, chars, bank, bank_cur);
+        }
+
+        public static String explain(char opcode, int chars, String bank, int bank_cur) {
+            switch (opcode) {
                 case '=':
                     return "keep " + chars;
                 case '+':
@@ -182,7 +337,7 @@ public class Changeset {
                 case '-':
                     return "remove " + chars;
                 default:
-                    return "invalid op " + this.opcode;
+                    return "invalid op " + opcode;
             }
         }
     }
@@ -211,6 +366,13 @@ public class Changeset {
             chars = o.chars;
         }
 
+        public void gets(OpIterator oi) {
+            attribs = oi.attribs;
+            lines = oi.lines;
+            opcode = oi.opcode;
+            chars = oi.chars;
+        }
+
         public MutableOperation() {
             invalidate();
         }
@@ -247,87 +409,221 @@ public class Changeset {
         }
     }
 
-    static class OpIterator implements Iterator<Operation> {
-        private String opstring;
+    // Cursor over the decoded ops of a changeset, nothing is allocated per op:
+    // after next() returns true the current op is available from the fields.
+    static class OpIterator {
+        private final int[] data;
+        private final int end;
+        private final String[] pool;
         private int curIndex;
 
-        Matcher m;
+        public char opcode;
+        public int chars;
+        public int lines;
+        public String attribs;
 
-        Operation regexResult;
+        public OpIterator(Changeset cs) {
+            this.data = cs.opData();
+            this.end = cs.opCount * OP_SIZE;
+            this.pool = cs.attribPool;
+            this.curIndex = 0;
 
-        private Operation nextRegexMatch() throws ChangesetException {
-            if (m.find(curIndex)) {
-                curIndex = m.end(0);
+            opcode = ' ';
+        }
 
-                String attribs = opstring.substring(m.start(1), m.end(1));
-                int lines = 0;
-                try {
-                    if (m.start(2) != m.end(2)) {
-                        lines = parseNum(opstring, m.start(2), m.end(2));
-                    }
-                } catch (ChangesetException e) {}
+        // advance to the next op, returns false once there are no more
+        public boolean next() {
+            if (curIndex >= end) {
+                opcode = ' ';
+                return false;
+            }
 
-                char opcode = opstring.charAt(m.start(3));
-                int chars = parseNum(opstring, m.start(4), m.end(4));
+            opcode = (char) data[curIndex+OP_OPCODE];
+            chars = data[curIndex+OP_CHARS];
+            lines = data[curIndex+OP_LINES];
+            attribs = pool[data[curIndex+OP_ATTRIBS]];
+            curIndex += OP_SIZE;
 
-                return new Operation(attribs, lines, opcode, chars);
-            }
-            return null;
+            return true;
         }
+    }
 
-        public OpIterator(String opstring) {
-            this.opstring = opstring;
+    // Decoder for a packed op string, used to fill in a changeset's opData.
+    // Ops are decoded by hand rather than with a regex: after next() returns
+    // true the current op is available from the fields below, with its
+    // attribs being the span [attribStart, attribEnd) of the op string.
+    // Like the regex version, text that can't start an op is skipped, and a
+    // '?' ends the op stream.
+    static class OpDecoder {
+        private final String opstring;
+        private int curIndex;
 
-            curIndex = 0;
+        public char opcode;
+        public int chars;
+        public int lines;
+        public int attribStart;
+        public int attribEnd;
 
-            m = opRegex.matcher(opstring);
+        // scratch for decodeNum, so the next digit position can be returned
+        private int numValue;
 
-            regexResult = null;
-            try {
-                regexResult = nextRegexMatch();
-            } catch (ChangesetException e) {}
+        public OpDecoder(String opstring) {
+            this.opstring = opstring;
+            this.curIndex = 0;
+
+            invalidate();
         }
 
-        public OpIterator(String opstring, int offset) {
-            this.opstring = opstring;
-            
-            curIndex = offset;
+        private void invalidate() {
+            opcode = ' ';
+            chars = 0;
+            lines = 0;
+            attribStart = attribEnd = curIndex;
+        }
 
-            m = opRegex.matcher(opstring);
+        // advance to the next op, returns false once there are no more
+        public boolean next() {
+            final int len = opstring.length();
 
-            regexResult = null;
-            try  {
-                regexResult = nextRegexMatch();
-            } catch (ChangesetException e) {}
+            while (curIndex < len) {
+                if (opstring.charAt(curIndex) == '?') {
+                    // terminator
+                    break;
+                }
+
+                int end = decodeAt(curIndex);
+                if (end >= 0) {
+                    curIndex = end;
+                    return true;
+                } else if (end == NUMBER_OVERFLOW) {
+                    // an op we can't represent, give up on the rest
+                    break;
+                }
+
+                // nothing here, try again at the next char
+                curIndex++;
+            }
+
+            curIndex = len;
+            invalidate();
+            return false;
         }
 
-        public boolean hasNext() {
-            return (regexResult != null);
+        public String attribs() {
+            if (attribStart == attribEnd) {
+                return "";
+            }
+            return opstring.substring(attribStart, attribEnd);
         }
 
-        public Operation next() {
-            Operation o = regexResult;
-            
-            regexResult = null;
-            try {
-                regexResult = nextRegexMatch();
-            } catch (ChangesetException e) { }
+        private static final int NO_MATCH = -1;
+        private static final int NUMBER_OVERFLOW = -2;
+
+        // Try to decode a whole op starting at start.
+        // On success fills in the op fields and returns the index just past it.
+        private int decodeAt(int start) {
+            final String s = opstring;
+            final int len = s.length();
+            int i = start;
+
+            // attribs: (\*[0-9a-z]+)*
+            while (i < len && s.charAt(i) == '*') {
+                int digitsEnd = skipDigits(i+1);
+                if (digitsEnd == i+1) {
+                    return NO_MATCH;
+                }
+                i = digitsEnd;
+            }
+            int attribsEnd = i;
+
+            // lines: (\|[0-9a-z]+)?
+            int newLines = 0;
+            if (i < len && s.charAt(i) == '|') {
+                int digitsEnd = decodeNum(i+1);
+                if (digitsEnd == i+1) {
+                    return NO_MATCH;
+                }
+                if (numValue >= 0) {
+                    newLines = numValue;
+                }
+                i = digitsEnd;
+            }
+
+            // opcode: [-+=]
+            if (i >= len) {
+                return NO_MATCH;
+            }
+            char newOpcode = s.charAt(i);
+            if (newOpcode != '-' && newOpcode != '+' && newOpcode != '=') {
+                return NO_MATCH;
+            }
+            i++;
 
-            return o;
+            // chars: [0-9a-z]+
+            int digitsEnd = decodeNum(i);
+            if (digitsEnd == i) {
+                return NO_MATCH;
+            }
+            if (numValue < 0) {
+                return NUMBER_OVERFLOW;
+            }
+
+            opcode = newOpcode;
+            chars = numValue;
+            lines = newLines;
+            attribStart = start;
+            attribEnd = attribsEnd;
+
+            return digitsEnd;
+        }
+
+        private int skipDigits(int i) {
+            final int len = opstring.length();
+            while (i < len && digitValue(opstring.charAt(i)) >= 0) {
+                i++;
+            }
+            return i;
         }
 
-        public void remove() throws UnsupportedOperationException {}
+        // base 36, leaves the value in numValue (-1 if it overflows an int)
+        // and returns the index past the last digit
+        private int decodeNum(int i) {
+            final int len = opstring.length();
+            long n = 0;
+            int d;
+
+            while (i < len && (d = digitValue(opstring.charAt(i))) >= 0) {
+                if (n >= 0) {
+                    n = n * 36 + d;
+                    if (n > Integer.MAX_VALUE) {
+                        n = -1;
+                    }
+                }
+                i++;
+            }
+
+            numValue = (int) n;
+            return i;
+        }
 
+        private static int digitValue(char c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            } else if (c >= 'a' && c <= 'z') {
+                return c - 'a' + 10;
+            }
+            return -1;
+        }
     }
 
-    private OpIterator opIterator() {
-        return new OpIterator(ops);
+    OpIterator opIterator() {
+        return new OpIterator(this);
     }
 
     // Ignoring all line and attribute info for now.
     public String applyToText(String s) throws ChangesetException {
         if (s.length() != oldLen) {
-            throw new ChangesetException("applying "+original_string+" to length " + s.length() + ", should be " + oldLen);
+            throw new ChangesetException("applying "+toString()+" to length " + s.length() + ", should be " + oldLen);
         }
 
         StringBuilder assem = new StringBuilder(newLen);
@@ -335,20 +631,18 @@ public class Changeset {
         int s_cur = 0;
         int bank_cur = 0;
 
-        for (OpIterator oi = opIterator(); oi.hasNext(); ) {
-            Operation o = oi.next();
-
-            switch (o.opcode) {
+        for (OpIterator oi = opIterator(); oi.next(); ) {
+            switch (oi.opcode) {
                 case '=':
-                    assem.append(s.subSequence(s_cur, s_cur + o.chars));
-                    s_cur += o.chars;
+                    assem.append(s, s_cur, s_cur + oi.chars);
+                    s_cur += oi.chars;
                     break;
                 case '-':
-                    s_cur += o.chars;
+                    s_cur += oi.chars;
                     break;
                 case '+':
-                    assem.append(charBank.subSequence(bank_cur, bank_cur + o.chars));
-                    bank_cur += o.chars;
+                    assem.append(charBank, bank_cur, bank_cur + oi.chars);
+                    bank_cur += oi.chars;
                     break;
             }
         }
@@ -358,13 +652,53 @@ public class Changeset {
         return assem.toString();
     }
 
+    // As above, but the result shares structure with s instead of copying it,
+    // so this is O(ops log n) rather than O(n).
+    public Rope applyToText(Rope s) throws ChangesetException {
+        if (s.length() != oldLen) {
+            throw new ChangesetException("applying "+toString()+" to length " + s.length() + ", should be " + oldLen);
+        }
+
+        Rope assem = Rope.EMPTY;
+
+        int s_cur = 0;
+        int bank_cur = 0;
+        // consecutive inserts (split at newlines) come from one run of the bank
+        int bank_start = 0;
+
+        for (OpIterator oi = opIterator(); oi.next(); ) {
+            if (oi.opcode != '+' && bank_start < bank_cur) {
+                assem = assem.concat(Rope.of(charBank.substring(bank_start, bank_cur)));
+                bank_start = bank_cur;
+            }
+
+            switch (oi.opcode) {
+                case '=':
+                    assem = assem.concat(s.subSequence(s_cur, s_cur + oi.chars));
+                    s_cur += oi.chars;
+                    break;
+                case '-':
+                    s_cur += oi.chars;
+                    break;
+                case '+':
+                    bank_cur += oi.chars;
+                    break;
+            }
+        }
+
+        if (bank_start < bank_cur) {
+            assem = assem.concat(Rope.of(charBank.substring(bank_start, bank_cur)));
+        }
+
+        return assem.concat(s.subSequence(s_cur, s.length()));
+    }
+
     // Determine where a marker ends up after this changeset.
     public Marker translateMarker(Marker marker) {
         int old_pos = 0;
         int new_pos = 0;
 
-        for (OpIterator i = opIterator(); i.hasNext(); ) {
-            Operation o = i.next();
+        for (OpIterator o = opIterator(); o.next(); ) {
             int old_next_pos;
             int new_next_pos;
 
@@ -410,11 +744,112 @@ public class Changeset {
         return new Marker(marker.pos + new_pos - old_pos, marker.before, marker.valid);
     }
 
+    // translateMarker() for a lot of markers at once, in place: they're
+    // sorted by position and moved in one sweep over the ops, instead of
+    // walking the ops again for each one
+    public void translateMarkers(Marker[] markers) {
+        int n = markers.length;
+        if (n == 1) {
+            markers[0] = translateMarker(markers[0]);
+        }
+        if (n <= 1) {
+            return;
+        }
+
+        long[] packed = new long[n];
+        // position in the high half, index in the low
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            packed[i] = markers[i].pack();
+            keys[i] = (packed[i] & ~0xffffffffL) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+
+        translatePacked(packed, order, n);
+
+        for (int i = 0; i < n; i++) {
+            if (packed[i] != markers[i].pack()) {
+                markers[i] = Marker.unpack(packed[i]);
+            }
+        }
+    }
+
+    // the sweep behind translateMarkers(), on packed markers (see
+    // Marker.pack()), in place; order[0, n) are indices into packed, sorted
+    // by position
+    void translatePacked(long[] packed, int[] order, int n) {
+        // nothing can be in an op before 0, these only get the final shift
+        int first = 0;
+        while (first < n && Marker.packedPos(packed[order[first]]) < 0) {
+            first++;
+        }
+
+        int next = first;
+        int old_pos = 0;
+        int new_pos = 0;
+
+        for (OpIterator o = opIterator(); o.next(); ) {
+            if (next == n && first == 0) {
+                // nothing left to move
+                return;
+            }
+
+            if (o.opcode == '+') {
+                new_pos += o.chars;
+                continue;
+            }
+
+            int old_next_pos = old_pos + o.chars;
+            for (; next < n; next++) {
+                int i = order[next];
+                long m = packed[i];
+                int pos = Marker.packedPos(m);
+                if (pos >= old_next_pos) {
+                    break;
+                }
+
+                if (o.opcode == '=') {
+                    // preserved
+                    if (new_pos != old_pos) {
+                        packed[i] = Marker.packedMove(m, pos + new_pos - old_pos);
+                    }
+                } else if ((m & Marker.BEFORE) != 0) {
+                    // removed, A[BC => A[C
+                    packed[i] = Marker.pack(new_pos, true, false);
+                } else {
+                    // removed, AB]C => A]C
+                    packed[i] = Marker.pack(Math.max(0, pos-1), false, false);
+                }
+            }
+
+            if (o.opcode == '=') {
+                new_pos += o.chars;
+            }
+            old_pos = old_next_pos;
+        }
+
+        // the rest are retained past the last op, as are any before 0
+        if (new_pos != old_pos) {
+            shiftPacked(packed, order, 0, first, new_pos - old_pos);
+            shiftPacked(packed, order, next, n, new_pos - old_pos);
+        }
+    }
+
+    private static void shiftPacked(long[] packed, int[] order, int start, int end, int shift) {
+        for (int j = start; j < end; j++) {
+            int i = order[j];
+            packed[i] = Marker.packedMove(packed[i], Marker.packedPos(packed[i]) + shift);
+        }
+    }
+
     public Marker afterThisEdit() {
         int pos = 0;
 
-        for (OpIterator i = opIterator(); i.hasNext(); ) {
-            Operation o = i.next();
+        for (OpIterator o = opIterator(); o.next(); ) {
             switch (o.opcode) {
             case '+':
             case '=':
@@ -444,96 +879,290 @@ public class Changeset {
             throw new ChangesetException("mismatched composition");
         }
 
+        // This used to go through the Zipper, but composing is done on every
+        // local edit so it's worth a loop of its own that writes straight into
+        // reusable buffers instead of producing Operations and op strings.
+        ComposeScratch scratch = ComposeScratch.take();
+        final OpBuffer assem = scratch.ops;
+        final StringBuilder bankAssem = scratch.bank;
+        final MutableOperation op1 = scratch.op1;
+        final MutableOperation op2 = scratch.op2;
+
+        assem.clear();
+        bankAssem.setLength(0);
+        op1.invalidate();
+        op2.invalidate();
+
         final StringIterator bankIter1 = new StringIterator(cs1.charBank);
         final StringIterator bankIter2 = new StringIterator(cs2.charBank);
-        final StringBuilder bankAssem = new StringBuilder();
+        final OpIterator iter1 = cs1.opIterator();
+        final OpIterator iter2 = cs2.opIterator();
 
-        Zipper z = new Zipper(new Zipper.F2() {
-            public Operation func(MutableOperation op1, MutableOperation op2) throws ChangesetException {
-                Operation opOut = null;
-                char op1code = op1.opcode;
-                char op2code = op2.opcode;
+        while (true) {
+            if (!op1.isValid() && iter1.next()) op1.gets(iter1);
+            if (!op2.isValid() && iter2.next()) op2.gets(iter2);
 
-                if (op1code == '+' && op2code == '-') {
-                    // op2 consumes chars banked by op1
-                    bankIter1.skip(Math.min(op1.chars, op2.chars));
-                }
+            if (!op1.isValid() && !op2.isValid()) break;
 
-                //opOut = slicerZipperFunc(op1, op2, pool);
-                if (op1.opcode == '-') {
-                    // op1 is removal, preserve
-                    opOut = op1.toImmutable();
-                    op1.invalidate();
-                } else if (!op1.isValid()) {
-                    // no op1, use op2 verbatim
-                    opOut = op2.toImmutable();
-                    op2.invalidate();
-                } else {
-                    switch (op2.opcode) {
-                    case '-':
-                        if (op2.chars <= op1.chars) {
-                            // delete or delete part
-                            if (op1code == '=') {
-                                opOut = new Operation("", op2.lines, '-', op2.chars);
-                            }
-                            op1.decBy(op2);
-                            op2.invalidate();
-                        } else { // op2.chars > op1.chars
-                            // delete and keep deleting
-                            if (op1.opcode == '=') {
-                                opOut = new Operation("", op1.lines, '-', op1.chars);
-                            }
-                            op2.decBy(op1);
-                            op1.invalidate();
+            // the op to output, if any
+            char outOpcode = ' ';
+            int outChars = 0;
+            int outLines = 0;
+            String outAttribs = "";
+
+            char op1code = op1.opcode;
+            char op2code = op2.opcode;
+
+            if (op1code == '+' && op2code == '-') {
+                // op2 consumes chars banked by op1
+                bankIter1.skip(Math.min(op1.chars, op2.chars));
+            }
+
+            if (op1.opcode == '-') {
+                // op1 is removal, preserve
+                outOpcode = op1.opcode; outChars = op1.chars; outLines = op1.lines; outAttribs = op1.attribs;
+                op1.invalidate();
+            } else if (!op1.isValid()) {
+                // no op1, use op2 verbatim
+                outOpcode = op2.opcode; outChars = op2.chars; outLines = op2.lines; outAttribs = op2.attribs;
+                op2.invalidate();
+            } else {
+                switch (op2.opcode) {
+                case '-':
+                    if (op2.chars <= op1.chars) {
+                        // delete or delete part
+                        if (op1code == '=') {
+                            outOpcode = '-'; outChars = op2.chars; outLines = op2.lines;
                         }
-                        break;
-                    case '+':
-                        // op2 is insertion, preserve
-                        opOut = op2.toImmutable();
+                        op1.decBy(op2);
                         op2.invalidate();
-                        break;
-                    case '=':
-                        if (op2.chars <= op1.chars) {
-                            // keep or keep part
-                            // do the operation from op1 for the chars/lines counted by op2
-                            //TODO: attrib stuff needed here
-                            opOut = new Operation("", op2.lines, op1.opcode, op2.chars);
-                            op1.decBy(op2);
-                            op2.invalidate();
-                        } else { // op2.chars > op1.chars
-                            // keep and keep on keeping on
-                            //TODO: attrib stuff needed here
-                            opOut = new Operation("", op1.lines, op1.opcode, op1.chars);
-                            op2.decBy(op1);
-                            op1.invalidate();
+                    } else { // op2.chars > op1.chars
+                        // delete and keep deleting
+                        if (op1.opcode == '=') {
+                            outOpcode = '-'; outChars = op1.chars; outLines = op1.lines;
                         }
-                        break;
-                    default: // op2 is invalid
-                        // no op2, use op1 verbatim
-                        opOut = op1.toImmutable();
+                        op2.decBy(op1);
                         op1.invalidate();
-                        break;
                     }
+                    break;
+                case '+':
+                    // op2 is insertion, preserve
+                    outOpcode = op2.opcode; outChars = op2.chars; outLines = op2.lines; outAttribs = op2.attribs;
+                    op2.invalidate();
+                    break;
+                case '=':
+                    if (op2.chars <= op1.chars) {
+                        // keep or keep part
+                        // do the operation from op1 for the chars/lines counted by op2
+                        //TODO: attrib stuff needed here
+                        outOpcode = op1.opcode; outChars = op2.chars; outLines = op2.lines;
+                        op1.decBy(op2);
+                        op2.invalidate();
+                    } else { // op2.chars > op1.chars
+                        // keep and keep on keeping on
+                        //TODO: attrib stuff needed here
+                        outOpcode = op1.opcode; outChars = op1.chars; outLines = op1.lines;
+                        op2.decBy(op1);
+                        op1.invalidate();
+                    }
+                    break;
+                default: // op2 is invalid
+                    // no op2, use op1 verbatim
+                    outOpcode = op1.opcode; outChars = op1.chars; outLines = op1.lines; outAttribs = op1.attribs;
+                    op1.invalidate();
+                    break;
                 }
+            }
 
-                if (opOut != null && opOut.opcode == '+') {
-                    // if opOut is insertion, where did the chars come from?
-                    if (op2code == '+') {
-                        // came from op2
-                        bankAssem.append(bankIter2.take(opOut.chars));
-                    } else {
-                        // came from op1
-                        bankAssem.append(bankIter1.take(opOut.chars));
-                    }
+            if (outOpcode == '+') {
+                // if the output is insertion, where did the chars come from?
+                if (op2code == '+') {
+                    // came from op2
+                    bankIter2.takeTo(bankAssem, outChars);
+                } else {
+                    // came from op1
+                    bankIter1.takeTo(bankAssem, outChars);
                 }
+            }
 
-                return opOut;
+            if (outOpcode != ' ') {
+                assem.append(outOpcode, outChars, outLines, outAttribs);
             }
-        });
+        }
+
+        assem.endDocument();
+        Changeset composed = assem.toChangeset(len1, len3, bankAssem.toString());
+        scratch.release();
+
+        return composed;
+    }
+
+    // per-thread buffers for compose, so composing doesn't allocate
+    // anything beyond the result
+    // except on virtual threads: a PadClient can have tens of thousands of
+    // them, each composing now and then, and buffers kept for each would
+    // come to far more than the pads themselves; they borrow from a few
+    // shared ones instead, trimmed small when given back
+    static class ComposeScratch {
+        // don't hang on to a huge bank after an unusually big compose
+        static final int MAX_KEPT_BANK = 64 * 1024;
+        // nor more than a few KB in the shared ones
+        static final int MAX_SHARED_BANK = 1024;
+        static final int MAX_SHARED_OPS = 64;
+        // about as many as can be composing at once
+        static final int SHARED_COUNT = 2 * Runtime.getRuntime().availableProcessors();
+
+        final OpBuffer ops = new OpBuffer();
+        StringBuilder bank = new StringBuilder();
+        final MutableOperation op1 = new MutableOperation();
+        final MutableOperation op2 = new MutableOperation();
+        boolean shared = false;
+
+        static ComposeScratch take() {
+            ComposeScratch scratch = composeScratch.get();
+            if (scratch == null) {
+                scratch = shared_scratch.poll();
+                if (scratch == null) {
+                    scratch = new ComposeScratch();
+                    scratch.shared = true;
+                }
+            }
+            return scratch;
+        }
+
+        // if compose() throws it isn't given back, a new one's made instead
+        void release() {
+            if (!shared) {
+                if (bank.capacity() > MAX_KEPT_BANK) {
+                    bank = new StringBuilder();
+                }
+                ops.trim(OpList.MAX_KEPT_OPS);
+                return;
+            }
+
+            if (bank.capacity() > MAX_SHARED_BANK) {
+                bank = new StringBuilder();
+            }
+            ops.trim(MAX_SHARED_OPS);
+            // if there are enough already it's garbage
+            shared_scratch.offer(this);
+        }
+    }
 
-        String newOps = z.apply(cs1.ops, 0, cs2.ops, 0);
+    // null on virtual threads, so they only carry the entry
+    static final ThreadLocal<ComposeScratch> composeScratch = new ThreadLocal<ComposeScratch>() {
+        @Override
+        protected ComposeScratch initialValue() {
+            return VirtualThreads.isVirtual(Thread.currentThread()) ? null : new ComposeScratch();
+        }
+    };
+
+    static final ArrayBlockingQueue<ComposeScratch> shared_scratch =
+        new ArrayBlockingQueue<ComposeScratch>(ComposeScratch.SHARED_COUNT);
+
+    /**
+     * compose a run of Changesets, each applying to the result of the one before
+     * Folding with compose() re-walks the growing result for every changeset,
+     * which is quadratic in the number of changesets; this reduces them as a
+     * balanced tree instead, so each op only takes part in O(log k) composes.
+     * @param changesets {List} at least one Changeset
+     */
+    public static Changeset composeAll(List<Changeset> changesets) throws ChangesetException {
+        if (changesets.isEmpty()) {
+            throw new ChangesetException("nothing to compose");
+        }
+        return composeRange(changesets, 0, changesets.size());
+    }
+
+    // end is noninclusive
+    private static Changeset composeRange(List<Changeset> changesets, int start, int end) throws ChangesetException {
+        if (end - start == 1) {
+            return changesets.get(start);
+        }
+        int mid = (start + end) >>> 1;
+        return compose(composeRange(changesets, start, mid), composeRange(changesets, mid, end));
+    }
 
-        return new Changeset(len1, len3, newOps, bankAssem.toString());
+    // streaming version of composeAll(List), see Composer
+    public static Changeset composeAll(Iterator<Changeset> changesets) throws ChangesetException {
+        Composer composer = new Composer();
+        while (changesets.hasNext()) {
+            composer.add(changesets.next());
+        }
+        return composer.result();
+    }
+
+    // Composes changesets as they arrive with the same balanced reduction as
+    // composeAll, without needing them all up front: like a binary counter it
+    // keeps at most O(log k) partial results, composing two whenever they
+    // cover the same number of changesets.
+    public static class Composer {
+        private final ArrayList<Changeset> partials;
+        // how many changesets each of the partials covers
+        private final ArrayList<Integer> weights;
+        private int count;
+
+        public Composer() {
+            partials = new ArrayList<Changeset>();
+            weights = new ArrayList<Integer>();
+            count = 0;
+        }
+
+        public void add(Changeset cs) throws ChangesetException {
+            int top = partials.size() - 1;
+            if (top >= 0 && partials.get(top).newLen != cs.oldLen) {
+                throw new ChangesetException("mismatched composition");
+            }
+
+            Changeset acc = cs;
+            int weight = 1;
+
+            while (top >= 0 && weights.get(top) == weight) {
+                acc = compose(partials.remove(top), acc);
+                weights.remove(top);
+                weight *= 2;
+                top--;
+            }
+
+            partials.add(acc);
+            weights.add(weight);
+            count++;
+        }
+
+        // number of changesets added since the last clear
+        public int size() {
+            return count;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        // composition of everything added so far, which is kept as the
+        // single partial result
+        public Changeset result() throws ChangesetException {
+            if (partials.isEmpty()) {
+                throw new ChangesetException("nothing to compose");
+            }
+
+            Changeset acc = partials.get(partials.size() - 1);
+            for (int i = partials.size() - 2; i >= 0; i--) {
+                acc = compose(partials.get(i), acc);
+            }
+
+            partials.clear();
+            weights.clear();
+            partials.add(acc);
+            weights.add(count);
+
+            return acc;
+        }
+
+        public void clear() {
+            partials.clear();
+            weights.clear();
+            count = 0;
+        }
     }
 
     // encapsulated for the sake of being able to pass this into the internal class
@@ -690,18 +1319,23 @@ public class Changeset {
             }
         });
 
-        String newOps = z.apply(cs1.ops, 0, cs2.ops, 0);
+        OpBuffer assem = new OpBuffer();
+        z.apply(cs1, cs2, assem);
         fs.newLen += fs.oldLen - fs.oldPos;
 
-        return new Changeset(fs.oldLen, fs.newLen, newOps, cs2.charBank);
+        return assem.toChangeset(fs.oldLen, fs.newLen, cs2.charBank);
     }
 
     public String toString() {
-        return original_string;
+        String s = original_string;
+        if (s == null) {
+            original_string = s = pack();
+        }
+        return s;
     }
 
     public String explain() {
-        StringBuilder sb = new StringBuilder(original_string);
+        StringBuilder sb = new StringBuilder(toString());
         int bank_cur = 0;
 
         sb.append('\n');
@@ -709,13 +1343,12 @@ public class Changeset {
         sb.append("->");
         sb.append(newLen);
 
-        for (OpIterator oi = opIterator(); oi.hasNext(); ) {
-            Operation o = oi.next();
+        for (OpIterator oi = opIterator(); oi.next(); ) {
             sb.append('\n');
-            sb.append(o.explain(charBank, bank_cur));
+            sb.append(Operation.explain(oi.opcode, oi.chars, charBank, bank_cur));
 
-            if (o.opcode == '+') {
-                bank_cur += o.chars;
+            if (oi.opcode == '+') {
+                bank_cur += oi.chars;
             }
         }
 
@@ -759,6 +1392,13 @@ public class Changeset {
             return s;
         }
 
+        // like take(), but appends straight to sb
+        public void takeTo(StringBuilder sb, int n) throws ChangesetException {
+            assertRemaining(n);
+            sb.append(str, curIndex, curIndex+n);
+            curIndex += n;
+        }
+
         public void skip(int n) throws ChangesetException {
             assertRemaining(n);
             curIndex += n;
@@ -954,11 +1594,28 @@ public class Changeset {
         // end is noninclusive
         public void appendOpWithText(char opcode, String text, int start, int end) {//, String attribs, String pool) {
             int lastNewlinePos = text.lastIndexOf('\n', end-1);
-            String attribs = "";
 
             if (lastNewlinePos < start) {
-                lastNewlinePos = -1;
+                appendOpWithLines(opcode, start, end, -1, 0);
+            } else {
+                appendOpWithLines(opcode, start, end, lastNewlinePos, countNewlines(text, start, end));
             }
+        }
+
+        // end is noninclusive
+        public void appendOpWithText(char opcode, Rope text, int start, int end) {
+            int lastNewlinePos = text.lastNewline(start, end);
+
+            if (lastNewlinePos < 0) {
+                appendOpWithLines(opcode, start, end, -1, 0);
+            } else {
+                appendOpWithLines(opcode, start, end, lastNewlinePos, text.countNewlines(start, end));
+            }
+        }
+
+        // lastNewlinePos is -1 if there's no newline in [start, end)
+        private void appendOpWithLines(char opcode, int start, int end, int lastNewlinePos, int newlines) {
+            String attribs = "";
 
             if (lastNewlinePos < 0) {
                 int chars = end-start;
@@ -967,7 +1624,7 @@ public class Changeset {
             } else {
                 // build a multiline operation
                 int chars = lastNewlinePos + 1 - start;
-                int lines = countNewlines(text, start, end);
+                int lines = newlines;
                 append(new Operation(attribs, lines, opcode, chars));
 
                 // take what's left for a in-line operation
@@ -1003,6 +1660,235 @@ public class Changeset {
         }
     }
 
+    // Does the same job as SmartOpAssembler (merging, ignoring no-ops,
+    // putting - before + and leaving a final keep implicit), but works on
+    // primitives and assembles straight into the decoded op layout, so the
+    // result becomes a Changeset without ever being packed into a string.
+    // Can be cleared and reused.
+    static class OpBuffer {
+        // assembled ops
+        private final OpList out;
+        // buffered runs, see SmartOpAssembler
+        private final MergingOpList minusAssem;
+        private final MergingOpList plusAssem;
+        private final MergingOpList keepAssem;
+
+        private char lastOpcode;
+
+        private String[] attribPool;
+        private int attribPoolSize;
+
+        public OpBuffer() {
+            out = new OpList();
+            minusAssem = new MergingOpList(new OpList());
+            plusAssem = new MergingOpList(new OpList());
+            // keeps are never reordered, they can go straight out
+            keepAssem = new MergingOpList(out);
+
+            attribPool = NO_ATTRIBS;
+            clear();
+        }
+
+        public void clear() {
+            out.clear();
+            minusAssem.clear();
+            plusAssem.clear();
+            keepAssem.clear();
+            lastOpcode = ' ';
+            attribPool = NO_ATTRIBS;
+            attribPoolSize = 1;
+        }
+
+        // drop storage grown by an unusually large changeset
+        void trim(int max_ops) {
+            out.trim(max_ops);
+            minusAssem.out.trim(max_ops);
+            plusAssem.out.trim(max_ops);
+        }
+
+        public void append(char opcode, int chars, int lines, String attribs) {
+            if (chars == 0) { return; }
+
+            int attribIdx = attribIndex(attribs);
+
+            switch (opcode) {
+                case '-':
+                    if (lastOpcode == '=') {
+                        keepAssem.flush(false);
+                    }
+                    minusAssem.append(opcode, chars, lines, attribIdx);
+                    break;
+                case '+':
+                    if (lastOpcode == '=') {
+                        keepAssem.flush(false);
+                    }
+                    plusAssem.append(opcode, chars, lines, attribIdx);
+                    break;
+                case '=':
+                    if (lastOpcode != '=') {
+                        flushPlusMinus();
+                    }
+                    keepAssem.append(opcode, chars, lines, attribIdx);
+                    break;
+            }
+
+            lastOpcode = opcode;
+        }
+
+        private int attribIndex(String attribs) {
+            if (attribs.length() == 0) {
+                return 0;
+            }
+
+            int idx = indexOf(attribPool, attribPoolSize, attribs);
+            if (idx < 0) {
+                if (attribPool == NO_ATTRIBS || attribPoolSize == attribPool.length) {
+                    attribPool = Arrays.copyOf(attribPool, attribPoolSize + 4);
+                }
+                idx = attribPoolSize;
+                attribPool[attribPoolSize++] = attribs;
+            }
+            return idx;
+        }
+
+        private void flushPlusMinus() {
+            minusAssem.flush(false);
+            out.appendAll(minusAssem.out);
+            minusAssem.out.clear();
+
+            plusAssem.flush(false);
+            out.appendAll(plusAssem.out);
+            plusAssem.out.clear();
+        }
+
+        public void endDocument() {
+            keepAssem.flush(true);
+        }
+
+        // copies the assembled ops out into a new Changeset
+        public Changeset toChangeset(int oldLen, int newLen, String charBank) {
+            flushPlusMinus();
+            keepAssem.flush(false);
+
+            String[] pool = attribPoolSize == 1 ? NO_ATTRIBS : Arrays.copyOf(attribPool, attribPoolSize);
+            return new Changeset(oldLen, newLen, Arrays.copyOf(out.data, out.count * OP_SIZE), out.count, pool, charBank);
+        }
+    }
+
+    // growable array of ops in the decoded layout
+    static class OpList {
+        static final int INITIAL_OPS = 16;
+        // don't hang on to more than this once we're done
+        static final int MAX_KEPT_OPS = 4096;
+
+        int[] data;
+        int count;
+
+        OpList() {
+            data = new int[INITIAL_OPS * OP_SIZE];
+            count = 0;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        void trim(int max_ops) {
+            if (data.length > max_ops * OP_SIZE) {
+                data = new int[INITIAL_OPS * OP_SIZE];
+            }
+        }
+
+        private void ensureRoom(int ops) {
+            int needed = (count + ops) * OP_SIZE;
+            if (needed > data.length) {
+                data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+            }
+        }
+
+        void append(char opcode, int chars, int lines, int attribIdx) {
+            ensureRoom(1);
+            int i = count * OP_SIZE;
+            data[i+OP_OPCODE] = opcode;
+            data[i+OP_CHARS] = chars;
+            data[i+OP_LINES] = lines;
+            data[i+OP_ATTRIBS] = attribIdx;
+            count++;
+        }
+
+        void appendAll(OpList other) {
+            ensureRoom(other.count);
+            System.arraycopy(other.data, 0, data, count * OP_SIZE, other.count * OP_SIZE);
+            count += other.count;
+        }
+    }
+
+    // MergingOpAssembler for OpBuffer
+    static class MergingOpList {
+        final OpList out;
+
+        // the buffered op, opcode ' ' if there is none
+        private char bufOpcode;
+        private int bufChars;
+        private int bufLines;
+        private int bufAttribs;
+
+        // as bufOpAdditionalCharsAfterNewline in MergingOpAssembler
+        private int bufAdditionalCharsAfterNewline;
+
+        MergingOpList(OpList out) {
+            this.out = out;
+            clear();
+        }
+
+        void clear() {
+            bufOpcode = ' ';
+            bufAdditionalCharsAfterNewline = 0;
+        }
+
+        void flush(boolean isEndDocument) {
+            if (bufOpcode != ' ') {
+                if (isEndDocument && bufOpcode == '=' && bufAttribs == 0) {
+                    // final merged keep, leave it implicit
+                } else {
+                    out.append(bufOpcode, bufChars, bufLines, bufAttribs);
+
+                    if (bufAdditionalCharsAfterNewline > 0) {
+                        out.append(bufOpcode, bufAdditionalCharsAfterNewline, 0, bufAttribs);
+                    }
+                }
+
+                bufAdditionalCharsAfterNewline = 0;
+                bufOpcode = ' ';
+            }
+        }
+
+        void append(char opcode, int chars, int lines, int attribIdx) {
+            if (bufOpcode == opcode && bufAttribs == attribIdx) {
+                // should be able to merge
+                if (lines > 0) {
+                    // buffered op and additional chars are all mergeable into a multi-line op
+                    bufChars += bufAdditionalCharsAfterNewline + chars;
+                    bufLines += lines;
+                    bufAdditionalCharsAfterNewline = 0;
+                } else if (bufLines == 0) {
+                    // both are in-line
+                    bufChars += chars;
+                } else {
+                    // append in-line text to multi-line op
+                    bufAdditionalCharsAfterNewline += chars;
+                }
+            } else {
+                // can't merge, flush buffer and buffer the new op
+                flush(false);
+                bufOpcode = opcode;
+                bufChars = chars;
+                bufLines = lines;
+                bufAttribs = attribIdx;
+            }
+        }
+    }
+
     static class Zipper {
         public interface F2 {
             Operation func(MutableOperation op1, MutableOperation op2) throws ChangesetException;
@@ -1014,27 +1900,28 @@ public class Changeset {
             this.func_interface = func_interface;
         }
 
-        public String apply(String in1, int idx1, String in2, int idx2) throws ChangesetException {
-            OpIterator iter1 = new OpIterator(in1, idx1);
-            OpIterator iter2 = new OpIterator(in2, idx2);
-            SmartOpAssembler assem = new SmartOpAssembler();
+        // the zipped ops are left in assem
+        public void apply(Changeset cs1, Changeset cs2, OpBuffer assem) throws ChangesetException {
+            OpIterator iter1 = cs1.opIterator();
+            OpIterator iter2 = cs2.opIterator();
 
             MutableOperation op1 = new MutableOperation();
             MutableOperation op2 = new MutableOperation();
 
-            while (op1.isValid() || iter1.hasNext() || op2.isValid() || iter2.hasNext()) {
-                if (!op1.isValid() && iter1.hasNext()) op1.gets(iter1.next());
-                if (!op2.isValid() && iter2.hasNext()) op2.gets(iter2.next());
+            while (true) {
+                if (!op1.isValid() && iter1.next()) op1.gets(iter1);
+                if (!op2.isValid() && iter2.next()) op2.gets(iter2);
+
+                if (!op1.isValid() && !op2.isValid()) break;
 
                 Operation opOut = func_interface.func(op1, op2);
 
                 if (opOut != null) {
-                    assem.append(opOut);
+                    assem.append(opOut.opcode, opOut.chars, opOut.lines, opOut.attribs);
                 }
             }
 
             assem.endDocument();
-            return assem.toString();
         }
     }
 
@@ -0,0 +1,176 @@
+package epl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+// when a Pad sends its local edits as USER_CHANGES, and how that's going
+// the protocol only allows one changeset in flight, so this can't make a pad
+// send more often than once per round trip; what it does is hold edits back
+// to go out together instead of one message per keystroke:
+//   min_interval  at least this long between sends
+//   max_batch     ...unless this many edits are waiting
+//   max_latency   ...or the oldest waiting edit has waited this long (0 for
+//                 no limit)
+// when what's held back is due a timer wakes the pad, and it's sent by the
+// update() that follows: push mode's or awaitUpdate()'s straight away, or
+// the caller's next one when polling
+// the default sends whenever it can, as Pad always has
+// the pad updates this under its lock, the metrics can be read from anywhere
+
+public class CommitScheduler {
+    final long min_interval_ns;
+    final int max_batch;
+    final long max_latency_ns;
+
+    // shared by all the pads; what runs on it only wakes a pad up (see
+    // Pad.wakeUp()) and never takes a pad's lock, so one that's busy can't
+    // hold up the others
+    private static ScheduledExecutorService timer = null;
+
+    static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "epl commit timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    // state, only touched under the pad's lock
+    private long last_send_ns;
+    private long oldest_edit_ns;
+    private int waiting_edits = 0;
+    private long in_flight_since_ns;
+
+    // metrics
+    private volatile long sends = 0;
+    private volatile long edits_sent = 0;
+    private volatile int largest_batch = 0;
+    private volatile long deferred = 0;
+    private volatile long acks = 0;
+    private volatile long ack_ns_total = 0;
+    private volatile long ack_ns_max = 0;
+    private volatile long last_ack_ns = 0;
+
+    // times in ms
+    public CommitScheduler(long min_interval, int max_batch, long max_latency) {
+        if (min_interval < 0 || max_batch < 1 || max_latency < 0) {
+            throw new IllegalArgumentException("bad commit policy " + min_interval + ", " + max_batch + ", " + max_latency);
+        }
+
+        this.min_interval_ns = min_interval * 1000000;
+        this.max_batch = max_batch;
+        this.max_latency_ns = max_latency * 1000000;
+        // so the first edit doesn't wait out min_interval
+        last_send_ns = System.nanoTime() - min_interval_ns;
+    }
+
+    // send as soon as there's nothing in flight
+    public CommitScheduler() {
+        this(0, Integer.MAX_VALUE, 0);
+    }
+
+    // ********** called by Pad under its lock
+
+    void edited(long now) {
+        if (waiting_edits == 0) {
+            oldest_edit_ns = now;
+        }
+        waiting_edits++;
+    }
+
+    // how long waiting edits should be held back yet, 0 to send now
+    long delay(long now) {
+        if (waiting_edits >= max_batch) {
+            return 0;
+        }
+
+        long delay = last_send_ns + min_interval_ns - now;
+        if (waiting_edits > 0 && max_latency_ns > 0) {
+            delay = Math.min(delay, oldest_edit_ns + max_latency_ns - now);
+        }
+        return Math.max(delay, 0);
+    }
+
+    void deferred() {
+        deferred++;
+    }
+
+    void sent(long now) {
+        sends++;
+        edits_sent += waiting_edits;
+        if (waiting_edits > largest_batch) {
+            largest_batch = waiting_edits;
+        }
+
+        waiting_edits = 0;
+        last_send_ns = now;
+        in_flight_since_ns = now;
+    }
+
+    void acked(long now) {
+        long rtt = now - in_flight_since_ns;
+        acks++;
+        ack_ns_total += rtt;
+        last_ack_ns = rtt;
+        if (rtt > ack_ns_max) {
+            ack_ns_max = rtt;
+        }
+    }
+
+    // ********** metrics
+
+    // USER_CHANGES sent, and the local edits that went in them
+    public long sendCount() {
+        return sends;
+    }
+
+    public long editsSent() {
+        return edits_sent;
+    }
+
+    public double meanBatch() {
+        long s = sends;
+        return s == 0 ? 0 : (double) edits_sent / s;
+    }
+
+    public int largestBatch() {
+        return largest_batch;
+    }
+
+    // times a send was held back by the policy
+    public long deferredCount() {
+        return deferred;
+    }
+
+    // round trips from USER_CHANGES to ACCEPT_COMMIT
+    public long ackCount() {
+        return acks;
+    }
+
+    public long meanAckNanos() {
+        long a = acks;
+        return a == 0 ? 0 : ack_ns_total / a;
+    }
+
+    public long maxAckNanos() {
+        return ack_ns_max;
+    }
+
+    public long lastAckNanos() {
+        return last_ack_ns;
+    }
+
+    public String toString() {
+        return "commits min interval " + (min_interval_ns / 1000000) + "ms, max batch " + max_batch
+            + ", max latency " + (max_latency_ns / 1000000) + "ms: sent " + sendCount()
+            + String.format(" (mean batch %.1f, largest %d)", meanBatch(), largestBatch())
+            + ", deferred " + deferredCount() + ", acks " + ackCount()
+            + " (mean " + (meanAckNanos() / 1000) + "us, max " + (maxAckNanos() / 1000) + "us)";
+    }
+}
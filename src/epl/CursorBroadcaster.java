@@ -0,0 +1,158 @@
+package epl;
+
+// when a Pad sends its cursor to the other users, as a !cursor! chat
+// message (see Pad.broadcastCursor())
+// a caret being moved about would otherwise send a message per keystroke or
+// mouse move; this holds a move back until at least interval has passed
+// since the last one went, and only the latest move held back goes, so a
+// burst of moves ends up as one message per interval, the last of them
+// always going out
+// a move to where the last one that went already put it sends nothing
+// when what's held back is due a timer wakes the pad, and it goes out with
+// the update() that follows, as held-back edits do (see CommitScheduler),
+// the positions as they were when broadcastCursor() was called
+// the default sends every move right away, except the repeats
+// the pad updates this under its lock, the metrics can be read from anywhere
+
+public class CursorBroadcaster {
+    final long interval_ns;
+
+    // state, only touched under the pad's lock
+    private long last_send_ns;
+    // what the other users have from us, if anything since connecting
+    private boolean has_sent = false;
+    private int sent_start;
+    private int sent_end;
+    // the latest move held back
+    private boolean has_pending = false;
+    private int pending_start;
+    private int pending_end;
+
+    // metrics
+    private volatile long moves = 0;
+    private volatile long sends = 0;
+    private volatile long repeats = 0;
+    private volatile long superseded = 0;
+    private volatile long dropped = 0;
+
+    // time in ms
+    public CursorBroadcaster(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("bad cursor interval " + interval);
+        }
+
+        this.interval_ns = interval * 1000000;
+        // so the first move doesn't wait out interval
+        last_send_ns = System.nanoTime() - interval_ns;
+    }
+
+    // send every move as it's made
+    public CursorBroadcaster() {
+        this(0);
+    }
+
+    // ********** called by Pad under its lock
+
+    // returns false if there's nothing new to send
+    boolean moved(int start, int end) {
+        moves++;
+
+        if (has_pending) {
+            if (start == pending_start && end == pending_end) {
+                repeats++;
+                return false;
+            }
+            superseded++;
+            has_pending = false;
+        }
+
+        if (has_sent && start == sent_start && end == sent_end) {
+            // back where the others last saw it
+            repeats++;
+            return false;
+        }
+
+        has_pending = true;
+        pending_start = start;
+        pending_end = end;
+        return true;
+    }
+
+    // how long the move should be held back yet, 0 to send now
+    long delay(long now) {
+        return Math.max(last_send_ns + interval_ns - now, 0);
+    }
+
+    boolean hasPending() {
+        return has_pending;
+    }
+
+    int pendingStart() {
+        return pending_start;
+    }
+
+    int pendingEnd() {
+        return pending_end;
+    }
+
+    void sent(long now) {
+        sends++;
+        has_sent = true;
+        sent_start = pending_start;
+        sent_end = pending_end;
+        has_pending = false;
+        last_send_ns = now;
+    }
+
+    // there was no connection to send it on when its time came
+    void dropped() {
+        if (has_pending) {
+            dropped++;
+            has_pending = false;
+        }
+    }
+
+    // a new connection, the next move goes whether it's a repeat or not
+    void connected() {
+        has_sent = false;
+    }
+
+    // ********** metrics
+
+    // calls to broadcastCursor() while connected
+    public long moveCount() {
+        return moves;
+    }
+
+    // !cursor! messages that went out
+    public long sendCount() {
+        return sends;
+    }
+
+    // moves to where the cursor already was
+    public long repeatCount() {
+        return repeats;
+    }
+
+    // moves held back and then replaced by a later one before they went
+    public long supersededCount() {
+        return superseded;
+    }
+
+    // moves held back that the connection was gone for
+    public long droppedCount() {
+        return dropped;
+    }
+
+    // moves that didn't go out, whatever the reason
+    public long suppressedCount() {
+        return repeats + superseded + dropped;
+    }
+
+    public String toString() {
+        return "cursors interval " + (interval_ns / 1000000) + "ms: moves " + moveCount()
+            + ", sent " + sendCount() + ", suppressed " + suppressedCount()
+            + " (repeats " + repeatCount() + ", superseded " + supersededCount()
+            + ", dropped " + droppedCount() + ")";
+    }
+}
@@ -0,0 +1,250 @@
+package epl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// bounded queue of incoming COLLABROOM messages, from the network thread(s)
+// to whoever calls Pad.update()
+// a ring buffer where each slot carries a sequence number saying whether
+// it's free for the producer at a given position or ready for the consumer
+// (after Dmitry Vyukov's bounded MPMC queue), so producers only ever CAS the
+// tail and never wait on the consumer's lock
+// poll() must only be called by one thread at a time, the Pad's lock sees
+// to that
+
+public class Inbox {
+    // what offer() does when the ring is full
+    public enum Policy {
+        // wait for the consumer to make room
+        BLOCK,
+        // keep only the latest cursor or user info message per user, held
+        // to one side until the ring catches up to where it arrived; other
+        // messages wait as with BLOCK
+        COALESCE,
+        // refuse the message, the caller should drop the connection as
+        // it's fallen too far behind
+        DISCONNECT
+    }
+
+    // how long a blocked producer sleeps between tries
+    static final long BLOCK_PARK_NS = 20 * 1000;
+
+    private final Policy policy;
+    private final int mask;
+    private final Object[] slots;
+    // slot i is free for the producer at position p when sequences[i] == p,
+    // and ready for the consumer at p when it's p + 1
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+
+    // coalesced messages waiting for the ring to reach their position
+    private static class Held {
+        final long pos;
+        final Messages.CollabRoom message;
+
+        Held(long pos, Messages.CollabRoom message) {
+            this.pos = pos;
+            this.message = message;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Held> held = new ConcurrentHashMap<String, Held>();
+
+    // metrics
+    private final AtomicLong offered = new AtomicLong(0);
+    private final AtomicLong max_depth = new AtomicLong(0);
+    private final AtomicLong blocked = new AtomicLong(0);
+    private final AtomicLong blocked_ns = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong refused = new AtomicLong(0);
+
+    // capacity is rounded up to a power of two
+    public Inbox(int capacity, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("inbox capacity must be at least 1");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.policy = policy;
+        mask = size - 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    // returns false only if the message was refused under DISCONNECT
+    boolean offer(Messages.CollabRoom message) {
+        offered.incrementAndGet();
+
+        if (tryOffer(message)) {
+            return true;
+        }
+
+        if (policy == Policy.DISCONNECT) {
+            refused.incrementAndGet();
+            return false;
+        }
+
+        if (policy == Policy.COALESCE) {
+            String key = message.coalesceKey();
+            if (key != null) {
+                // arrived behind everything in the ring right now
+                if (held.put(key, new Held(tail.get(), message)) != null) {
+                    coalesced.incrementAndGet();
+                }
+                return true;
+            }
+        }
+
+        blocked.incrementAndGet();
+        long start = System.nanoTime();
+        while (!tryOffer(message)) {
+            LockSupport.parkNanos(BLOCK_PARK_NS);
+        }
+        blocked_ns.addAndGet(System.nanoTime() - start);
+        return true;
+    }
+
+    private boolean tryOffer(Messages.CollabRoom message) {
+        long pos = tail.get();
+
+        while (true) {
+            int idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[idx] = message;
+                    // publishes the slot to the consumer
+                    sequences.set(idx, pos + 1);
+                    noteDepth(Math.min(pos + 1 - head, slots.length));
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                // the consumer hasn't freed this slot from the last lap
+                return false;
+            } else {
+                // another producer got here first
+                pos = tail.get();
+            }
+        }
+    }
+
+    // consumer only, null when empty
+    Messages.CollabRoom poll() {
+        long h = head;
+
+        if (!held.isEmpty()) {
+            Messages.CollabRoom message = pollHeld(h);
+            if (message != null) {
+                return message;
+            }
+        }
+
+        int idx = (int) (h & mask);
+        if (sequences.get(idx) != h + 1) {
+            return null;
+        }
+
+        Messages.CollabRoom message = (Messages.CollabRoom) slots[idx];
+        slots[idx] = null;
+        // free for the producer on the next lap
+        sequences.set(idx, h + slots.length);
+        head = h + 1;
+        return message;
+    }
+
+    // the earliest held message whose place in line has come up
+    private Messages.CollabRoom pollHeld(long h) {
+        Map.Entry<String, Held> earliest = null;
+
+        for (Iterator<Map.Entry<String, Held>> i = held.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Held> e = i.next();
+            if (e.getValue().pos <= h && (earliest == null || e.getValue().pos < earliest.getValue().pos)) {
+                earliest = e;
+            }
+        }
+
+        // it may just have been replaced by a later one, which waits its turn
+        if (earliest != null && held.remove(earliest.getKey(), earliest.getValue())) {
+            return earliest.getValue().message;
+        }
+        return null;
+    }
+
+    // consumer only, throws away everything queued
+    void clear() {
+        while (poll() != null) {
+        }
+    }
+
+    private void noteDepth(long depth) {
+        long max = max_depth.get();
+        while (depth > max && !max_depth.compareAndSet(max, depth)) {
+            max = max_depth.get();
+        }
+    }
+
+    // ********** metrics, safe to read from any thread
+
+    // messages waiting, including held ones
+    public long depth() {
+        return Math.max(0, tail.get() - head) + held.size();
+    }
+
+    // most messages ever in the ring at once
+    public long maxDepth() {
+        return max_depth.get();
+    }
+
+    public long offeredCount() {
+        return offered.get();
+    }
+
+    // offers that had to wait for room, and for how long altogether
+    public long blockedCount() {
+        return blocked.get();
+    }
+
+    public long blockedNanos() {
+        return blocked_ns.get();
+    }
+
+    // messages dropped because a later one from the same user replaced them
+    public long coalescedCount() {
+        return coalesced.get();
+    }
+
+    // messages refused under DISCONNECT
+    public long refusedCount() {
+        return refused.get();
+    }
+
+    public String toString() {
+        return "inbox " + policy + " depth " + depth() + "/" + capacity() + ", max " + maxDepth()
+            + ", offered " + offeredCount() + ", blocked " + blockedCount()
+            + " (" + (blockedNanos() / 1000000) + "ms), coalesced " + coalescedCount()
+            + ", refused " + refusedCount();
+    }
+}
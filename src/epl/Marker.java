@@ -21,4 +21,33 @@ public class Marker {
         this.before = before;
         this.valid = valid;
     }
+
+    // ********** packed
+    // a marker in a long, for MarkerTable and the translation sweep: the
+    // position in the high half, so packed markers sort by position, then
+    // the flags
+
+    static final long BEFORE = 2;
+    static final long VALID = 1;
+
+    static long pack(int pos, boolean before, boolean valid) {
+        return ((long) pos << 32) | (before ? BEFORE : 0) | (valid ? VALID : 0);
+    }
+
+    long pack() {
+        return pack(pos, before, valid);
+    }
+
+    static Marker unpack(long m) {
+        return new Marker(packedPos(m), (m & BEFORE) != 0, (m & VALID) != 0);
+    }
+
+    static int packedPos(long m) {
+        return (int) (m >> 32);
+    }
+
+    // the same flags at another position
+    static long packedMove(long m, int pos) {
+        return ((long) pos << 32) | (m & 0xffffffffL);
+    }
 }
@@ -0,0 +1,269 @@
+package epl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a Pad's registered markers, packed into longs (see Marker.pack()) and
+// addressed by handle, which stays the same for as long as the marker is
+// registered; removed markers' handles go on a free list to be reused
+// moving them all through a changeset is done in place and allocates
+// nothing: the handles are kept in order of position from one change to the
+// next, which a change mostly leaves alone, so putting that order right
+// again before the sweep is a pass of insertion sort rather than a sort
+// publishing them for Pad's snapshot copies them, but into one of two
+// buffers taken in turn, see snapshot(), so that doesn't allocate either
+// the pad updates this under its lock, readers of what it publishes go
+// through startRead() and endRead() and never wait
+
+class MarkerTable {
+    // a free slot has this flag, with the next free handle in the high half
+    private static final long FREE = 4;
+
+    private long[] slots = new long[16];
+    // handles below this have been handed out, whether freed since or not
+    private int size = 0;
+    private int live = 0;
+    private int free_head = -1;
+
+    // the live handles in order of position, though adds and moves since
+    // the last sweep may have put it out of order, see sortOrder(); stale
+    // when handles have been freed, as one might have been reused
+    private int[] order = new int[16];
+    private int order_count = 0;
+    private boolean order_stale = false;
+    private long[] sort_keys = new long[0];
+
+    // what snapshot() last gave out, and whether it's still current
+    private Published published = null;
+    private boolean changed = true;
+    // the buffer of the one before, superseded when published was; reused
+    // if nothing could still be reading it, see snapshot()
+    private long[] retired = null;
+
+    // readers between startRead() and endRead()
+    private final AtomicInteger readers = new AtomicInteger(0);
+
+    // a copy of the slots as they were, free ones marked as such
+    // its buffer may be reused for a later copy, so only unpack() it
+    // between startRead() and endRead()
+    static final class Published {
+        private final long[] slots;
+        private final int size;
+
+        Published(long[] slots, int size) {
+            this.slots = slots;
+            this.size = size;
+        }
+
+        // the markers by handle, null for free ones
+        Marker[] unpack() {
+            Marker[] markers = new Marker[size];
+            for (int i = 0; i < size; i++) {
+                if ((slots[i] & FREE) == 0) {
+                    markers[i] = Marker.unpack(slots[i]);
+                }
+            }
+            return markers;
+        }
+    }
+
+    // around loading what was published and unpacking it, from any thread
+    void startRead() {
+        readers.incrementAndGet();
+    }
+
+    void endRead() {
+        readers.decrementAndGet();
+    }
+
+    int size() {
+        return size;
+    }
+
+    int liveCount() {
+        return live;
+    }
+
+    boolean isLive(int handle) {
+        return handle >= 0 && handle < size && (slots[handle] & FREE) == 0;
+    }
+
+    // the marker for handle, which must be live
+    Marker get(int handle) {
+        return Marker.unpack(slots[checkLive(handle)]);
+    }
+
+    void set(int handle, Marker m) {
+        slots[checkLive(handle)] = m.pack();
+        changed = true;
+    }
+
+    int add(Marker m) {
+        int handle;
+        if (free_head >= 0) {
+            handle = free_head;
+            free_head = (int) (slots[handle] >> 32);
+        } else {
+            handle = grow(1);
+        }
+        slots[handle] = m.pack();
+        live++;
+        appendOrder(handle);
+        changed = true;
+        return handle;
+    }
+
+    // two markers with handles one after the other, the free list can't
+    // promise that so they go on the end
+    int addPair(Marker first, Marker second) {
+        int handle = grow(2);
+        slots[handle] = first.pack();
+        slots[handle + 1] = second.pack();
+        live += 2;
+        appendOrder(handle);
+        appendOrder(handle + 1);
+        changed = true;
+        return handle;
+    }
+
+    void remove(int handle) {
+        checkLive(handle);
+        slots[handle] = ((long) free_head << 32) | FREE;
+        free_head = handle;
+        live--;
+        order_stale = true;
+        changed = true;
+    }
+
+    // moves every marker through cs, see Changeset.translateMarker()
+    void translate(Changeset cs) {
+        if (live == 0) {
+            return;
+        }
+        sortOrder();
+        cs.translatePacked(slots, order, order_count);
+        changed = true;
+    }
+
+    // the slots as they are now, for Pad's published snapshot: the same
+    // one until something changes
+    // the copy goes into the buffer of the one before last, which the pad
+    // replaced with the last one when that was published, so a reader that
+    // starts now can only load the last one or later; if no reader's
+    // between startRead() and endRead() either, nothing can be reading the
+    // one before last, and its buffer's ours again
+    // otherwise it's left to whoever has it and the copy gets a new one,
+    // so a reader never waits or retries, and with nobody reading at the
+    // time two buffers are used in turn
+    Published snapshot() {
+        if (!changed) {
+            return published;
+        }
+
+        long[] buf = retired;
+        retired = null;
+        if (buf != null && readers.get() != 0) {
+            buf = null;
+        }
+        if (buf == null || buf.length < size) {
+            buf = new long[slots.length];
+        }
+        System.arraycopy(slots, 0, buf, 0, size);
+
+        if (published != null) {
+            retired = published.slots;
+        }
+        published = new Published(buf, size);
+        changed = false;
+        return published;
+    }
+
+    private int checkLive(int handle) {
+        if (!isLive(handle)) {
+            throw new IllegalArgumentException("no marker " + handle);
+        }
+        return handle;
+    }
+
+    // n new handles on the end
+    private int grow(int n) {
+        if (size + n > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(size + n, slots.length * 2));
+        }
+        int handle = size;
+        size += n;
+        return handle;
+    }
+
+    private void appendOrder(int handle) {
+        if (order_stale) {
+            // rebuilt before it's used anyway
+            return;
+        }
+        if (order_count == order.length) {
+            order = Arrays.copyOf(order, order.length * 2);
+        }
+        order[order_count++] = handle;
+    }
+
+    // puts order right for the sweep
+    private void sortOrder() {
+        if (order_stale) {
+            rebuildOrder();
+            return;
+        }
+
+        // a change moves markers in order except for the odd one, and adds
+        // go on the end, so this is nearly always a pass with nothing or
+        // next to nothing to do; if it's more than that, sort outright
+        int descents = 0;
+        for (int j = 1; j < order_count; j++) {
+            if (slots[order[j]] < slots[order[j - 1]]) {
+                descents++;
+            }
+        }
+        if (descents == 0) {
+            return;
+        }
+        if (descents > 8) {
+            rebuildOrder();
+            return;
+        }
+
+        for (int j = 1; j < order_count; j++) {
+            int handle = order[j];
+            long m = slots[handle];
+            int k = j - 1;
+            while (k >= 0 && slots[order[k]] > m) {
+                order[k + 1] = order[k];
+                k--;
+            }
+            order[k + 1] = handle;
+        }
+    }
+
+    // from scratch, live handles by position
+    private void rebuildOrder() {
+        if (order.length < live) {
+            order = new int[Math.max(live, order.length * 2)];
+        }
+        if (sort_keys.length < live) {
+            sort_keys = new long[order.length];
+        }
+
+        int n = 0;
+        for (int handle = 0; handle < size; handle++) {
+            if ((slots[handle] & FREE) == 0) {
+                // position in the high half, handle in the low
+                sort_keys[n++] = (slots[handle] & ~0xffffffffL) | handle;
+            }
+        }
+        Arrays.sort(sort_keys, 0, n);
+        for (int j = 0; j < n; j++) {
+            order[j] = (int) sort_keys[j];
+        }
+
+        order_count = n;
+        order_stale = false;
+    }
+}
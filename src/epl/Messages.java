@@ -0,0 +1,653 @@
+package epl;
+
+import org.json.*;
+
+// the handful of Etherpad messages a Pad sends and handles all the time,
+// without building org.json trees for them
+// outgoing ones are written straight into a reusable buffer and sent as the
+// text (Raw, the socket only ever calls toString() on what it sends)
+// incoming COLLABROOM messages become the typed records below, either read
+// out of the JSONObject the socket has already parsed, or decoded straight
+// from the text by a pull parser that skips whatever it doesn't need
+// (decode(), for transports that hand over text)
+// anything else, like CLIENT_VARS, stays a JSONObject
+
+final class Messages {
+    private Messages() {}
+
+    // ********** outgoing
+
+    // a message already written out, as far as the socket is concerned a
+    // JSONObject
+    static final class Raw extends JSONObject {
+        final String text;
+
+        Raw(String text) {
+            this.text = text;
+        }
+
+        public String toString() {
+            return text;
+        }
+
+        public String toString(int indent) {
+            return text;
+        }
+    }
+
+    static Raw clientReady(StringBuilder buf, String pad_id, String token) {
+        buf.setLength(0);
+        buf.append("{\"component\":\"pad\",\"type\":\"CLIENT_READY\",\"padId\":");
+        quote(buf, pad_id);
+        buf.append(",\"sessionID\":null,\"token\":");
+        quote(buf, token);
+        buf.append(",\"password\":null,\"protocolVersion\":2}");
+        return new Raw(buf.toString());
+    }
+
+    // picking up where we left off at client_rev, the server sends what we
+    // missed as CLIENT_RECONNECT instead of CLIENT_VARS
+    static Raw clientReconnect(StringBuilder buf, String pad_id, String token, long client_rev) {
+        clientReady(buf, pad_id, token);
+        buf.setLength(buf.length() - 1);
+        buf.append(",\"reconnect\":true,\"client_rev\":");
+        buf.append(client_rev);
+        buf.append('}');
+        return new Raw(buf.toString());
+    }
+
+    // with a dummy empty attribute pool
+    static Raw userChanges(StringBuilder buf, long base_rev, Changeset changeset) {
+        buf.setLength(0);
+        buf.append("{\"component\":\"pad\",\"type\":\"COLLABROOM\",\"data\":{\"type\":\"USER_CHANGES\",\"baseRev\":");
+        buf.append(base_rev);
+        buf.append(",\"changeset\":");
+        quote(buf, changeset.toString());
+        buf.append(",\"apool\":{\"numToAttrib\":[],\"nextNum\":0}}}");
+        return new Raw(buf.toString());
+    }
+
+    static Raw chatMessage(StringBuilder buf, String text) {
+        buf.setLength(0);
+        buf.append("{\"component\":\"pad\",\"type\":\"COLLABROOM\",\"data\":{\"type\":\"CHAT_MESSAGE\",\"text\":");
+        quote(buf, text);
+        buf.append("}}");
+        return new Raw(buf.toString());
+    }
+
+    static void quote(StringBuilder buf, String s) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  buf.append("\\\""); break;
+            case '\\': buf.append("\\\\"); break;
+            case '\n': buf.append("\\n"); break;
+            case '\r': buf.append("\\r"); break;
+            case '\t': buf.append("\\t"); break;
+            case '\b': buf.append("\\b"); break;
+            case '\f': buf.append("\\f"); break;
+            default:
+                // control characters, and the line separators JavaScript
+                // doesn't allow in strings
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    buf.append("\\u");
+                    String hex = Integer.toHexString(c);
+                    for (int j = hex.length(); j < 4; j++) {
+                        buf.append('0');
+                    }
+                    buf.append(hex);
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+        buf.append('"');
+    }
+
+    // ********** incoming COLLABROOM messages
+
+    static abstract class CollabRoom {
+        final String type;
+
+        CollabRoom(String type) {
+            this.type = type;
+        }
+
+        // messages where only the latest per user matters share a key, see
+        // Inbox.Policy.COALESCE
+        String coalesceKey() {
+            return null;
+        }
+    }
+
+    static final class NewChanges extends CollabRoom {
+        final long new_rev;
+        final String changeset;
+        final String author;
+        final long time;
+
+        NewChanges(long new_rev, String changeset, String author, long time) {
+            super("NEW_CHANGES");
+            this.new_rev = new_rev;
+            this.changeset = changeset;
+            this.author = author;
+            this.time = time;
+        }
+
+        public String toString() {
+            return type + " " + new_rev + " by " + author + ": " + changeset;
+        }
+    }
+
+    static final class AcceptCommit extends CollabRoom {
+        final long new_rev;
+
+        AcceptCommit(long new_rev) {
+            super("ACCEPT_COMMIT");
+            this.new_rev = new_rev;
+        }
+    }
+
+    static final class UserNewInfo extends CollabRoom {
+        final String user_id;
+        final String name;      // null if none
+        final int color_num;    // index into the color palette, or -1
+        final String color_id;  // when it isn't an index
+
+        UserNewInfo(String user_id, String name, int color_num, String color_id) {
+            super("USER_NEWINFO");
+            this.user_id = user_id;
+            this.name = name;
+            this.color_num = color_num;
+            this.color_id = color_id;
+        }
+
+        String coalesceKey() {
+            return "info " + user_id;
+        }
+    }
+
+    static final class UserLeave extends CollabRoom {
+        final String user_id;
+
+        UserLeave(String user_id) {
+            super("USER_LEAVE");
+            this.user_id = user_id;
+        }
+    }
+
+    static final class ChatMessage extends CollabRoom {
+        final String user_id;
+        final String user_name; // null if none
+        final String text;
+        final long time;
+        // if text is a cursor, see parseCursor(), otherwise cursor_start
+        // is -1
+        final int cursor_start;
+        final int cursor_end;
+
+        ChatMessage(String user_id, String user_name, String text, long time) {
+            super("CHAT_MESSAGE");
+            this.user_id = user_id;
+            this.user_name = user_name;
+            this.text = text;
+            this.time = time;
+
+            long cursor = parseCursor(text);
+            cursor_start = (int) (cursor >> 32);
+            cursor_end = (int) cursor;
+        }
+
+        boolean isCursor() {
+            return cursor_start >= 0;
+        }
+
+        String coalesceKey() {
+            return isCursor() ? "cursor " + user_id : null;
+        }
+    }
+
+    static final String CURSOR_PREFIX = "!cursor!";
+
+    // "!cursor!start-end", or "!cursor!start" for a caret, which comes out
+    // as end = start - 1 (see Avatar.setPos()); anything after the numbers
+    // is ignored
+    // start in the high half and end in the low, -1 if it isn't a cursor
+    // at all or the numbers don't fit in an int
+    static long parseCursor(String text) {
+        if (!text.startsWith(CURSOR_PREFIX)) {
+            return -1;
+        }
+
+        int i = CURSOR_PREFIX.length();
+        int n = text.length();
+        long start = 0;
+        int digits = 0;
+        for (; i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++, digits++) {
+            start = start * 10 + (text.charAt(i) - '0');
+            if (start > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+
+        long end = start - 1;
+        if (i + 1 < n && text.charAt(i) == '-' && text.charAt(i + 1) >= '0' && text.charAt(i + 1) <= '9') {
+            end = 0;
+            for (i++; i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+                end = end * 10 + (text.charAt(i) - '0');
+                if (end > Integer.MAX_VALUE) {
+                    return -1;
+                }
+            }
+        }
+
+        return (start << 32) | (end & 0xffffffffL);
+    }
+
+    // a revision missed while disconnected, in order up to head_rev, or if
+    // no_changes, that nothing was missed
+    static final class ClientReconnect extends CollabRoom {
+        final boolean no_changes;
+        final long head_rev;
+        final long new_rev;
+        final String changeset;
+        final String author;
+        final long time;
+
+        ClientReconnect(boolean no_changes, long head_rev, long new_rev, String changeset, String author, long time) {
+            super("CLIENT_RECONNECT");
+            this.no_changes = no_changes;
+            this.head_rev = head_rev;
+            this.new_rev = new_rev;
+            this.changeset = changeset;
+            this.author = author;
+            this.time = time;
+        }
+
+        boolean isLast() {
+            return no_changes || new_rev >= head_rev;
+        }
+
+        public String toString() {
+            return no_changes ? type + " no changes at " + new_rev
+                : type + " " + new_rev + " of " + head_rev + " by " + author + ": " + changeset;
+        }
+    }
+
+    // one we don't handle, kept for the type
+    static final class Other extends CollabRoom {
+        Other(String type) {
+            super(type);
+        }
+    }
+
+    // from the tree the socket parsed, json is the whole message
+    static CollabRoom collabRoom(JSONObject json) throws PadException {
+        JSONObject data;
+        String type;
+
+        try {
+            data = json.getJSONObject("data");
+            type = data.getString("type");
+        } catch (JSONException e) {
+            throw new PadException("error getting COLLABROOM metadata", e);
+        }
+
+        try {
+            if ("NEW_CHANGES".equals(type)) {
+                return new NewChanges(data.getLong("newRev"), data.getString("changeset"),
+                    data.getString("author"), data.getLong("currentTime"));
+            } else if ("ACCEPT_COMMIT".equals(type)) {
+                return new AcceptCommit(data.getLong("newRev"));
+            } else if ("USER_NEWINFO".equals(type)) {
+                JSONObject user_info = data.getJSONObject("userInfo");
+                return new UserNewInfo(user_info.getString("userId"),
+                    user_info.isNull("name") ? null : user_info.getString("name"),
+                    user_info.optInt("colorId", -1), user_info.optString("colorId"));
+            } else if ("USER_LEAVE".equals(type)) {
+                return new UserLeave(data.getJSONObject("userInfo").getString("userId"));
+            } else if ("CHAT_MESSAGE".equals(type)) {
+                return new ChatMessage(data.getString("userId"), data.optString("userName", null),
+                    data.getString("text"), data.getLong("time"));
+            } else if ("CLIENT_RECONNECT".equals(type)) {
+                if (data.optBoolean("noChanges")) {
+                    return new ClientReconnect(true, data.getLong("newRev"), data.getLong("newRev"), null, null, 0);
+                }
+                return new ClientReconnect(false, data.getLong("headRev"), data.getLong("newRev"),
+                    data.getString("changeset"), data.optString("author", ""), data.getLong("currentTime"));
+            }
+        } catch (JSONException e) {
+            throw new PadException("bad/missing data in " + type, e);
+        }
+
+        return new Other(type);
+    }
+
+    // ********** decoding from text
+
+    // the message in text if it's a COLLABROOM one, otherwise null (parse it
+    // as a JSONObject then)
+    static CollabRoom decode(String text) throws PadException {
+        Decoder d = new Decoder(text);
+        try {
+            return d.message();
+        } catch (RuntimeException e) {
+            // bad numbers, running off the end
+            throw new PadException("couldn't decode message: " + text, e);
+        }
+    }
+
+    // a pull parser over the text, fields it's after go into the slots
+    // below as they turn up (they can come in any order), the rest are
+    // skipped over without being built
+    private static final class Decoder {
+        final String s;
+        int pos = 0;
+
+        // top level
+        String type = null;
+        boolean has_data = false;
+
+        // in data
+        String data_type = null;
+        long new_rev = -1;
+        String changeset = null;
+        String author = null;
+        long current_time = 0;
+        long time = 0;
+        String user_id = null;
+        String user_name = null;
+        String text = null;
+        boolean no_changes = false;
+        long head_rev = -1;
+
+        // in data.userInfo
+        String info_user_id = null;
+        String info_name = null;
+        int color_num = -1;
+        String color_id = "";
+
+        Decoder(String s) {
+            this.s = s;
+        }
+
+        CollabRoom message() throws PadException {
+            expect('{');
+            if (!tryConsume('}')) {
+                do {
+                    String key = string();
+                    expect(':');
+                    if ("type".equals(key)) {
+                        type = stringOrNull();
+                    } else if ("data".equals(key) && peek() == '{') {
+                        has_data = true;
+                        data();
+                    } else {
+                        skipValue();
+                    }
+                } while (tryConsume(','));
+                expect('}');
+            }
+
+            if (!"COLLABROOM".equals(type)) {
+                return null;
+            }
+            if (!has_data || data_type == null) {
+                throw new PadException("error getting COLLABROOM metadata");
+            }
+
+            if ("NEW_CHANGES".equals(data_type)) {
+                require(changeset != null && author != null && new_rev >= 0);
+                return new NewChanges(new_rev, changeset, author, current_time);
+            } else if ("ACCEPT_COMMIT".equals(data_type)) {
+                require(new_rev >= 0);
+                return new AcceptCommit(new_rev);
+            } else if ("USER_NEWINFO".equals(data_type)) {
+                require(info_user_id != null);
+                return new UserNewInfo(info_user_id, info_name, color_num, color_id);
+            } else if ("USER_LEAVE".equals(data_type)) {
+                require(info_user_id != null);
+                return new UserLeave(info_user_id);
+            } else if ("CHAT_MESSAGE".equals(data_type)) {
+                require(user_id != null && text != null);
+                return new ChatMessage(user_id, user_name, text, time);
+            } else if ("CLIENT_RECONNECT".equals(data_type)) {
+                require(new_rev >= 0);
+                if (no_changes) {
+                    return new ClientReconnect(true, new_rev, new_rev, null, null, 0);
+                }
+                require(changeset != null && head_rev >= 0);
+                return new ClientReconnect(false, head_rev, new_rev, changeset, (author != null) ? author : "", current_time);
+            }
+            return new Other(data_type);
+        }
+
+        void require(boolean ok) throws PadException {
+            if (!ok) {
+                throw new PadException("bad/missing data in " + data_type + ": " + s);
+            }
+        }
+
+        void data() throws PadException {
+            expect('{');
+            if (tryConsume('}')) {
+                return;
+            }
+            do {
+                String key = string();
+                expect(':');
+                if ("type".equals(key)) {
+                    data_type = stringOrNull();
+                } else if ("newRev".equals(key)) {
+                    new_rev = number();
+                } else if ("headRev".equals(key)) {
+                    head_rev = number();
+                } else if ("noChanges".equals(key)) {
+                    no_changes = bool();
+                } else if ("changeset".equals(key)) {
+                    changeset = stringOrNull();
+                } else if ("author".equals(key)) {
+                    author = stringOrNull();
+                } else if ("currentTime".equals(key)) {
+                    current_time = number();
+                } else if ("time".equals(key)) {
+                    time = number();
+                } else if ("userId".equals(key)) {
+                    user_id = stringOrNull();
+                } else if ("userName".equals(key)) {
+                    user_name = stringOrNull();
+                } else if ("text".equals(key)) {
+                    text = stringOrNull();
+                } else if ("userInfo".equals(key) && peek() == '{') {
+                    userInfo();
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+
+        void userInfo() throws PadException {
+            expect('{');
+            if (tryConsume('}')) {
+                return;
+            }
+            do {
+                String key = string();
+                expect(':');
+                if ("userId".equals(key)) {
+                    info_user_id = stringOrNull();
+                } else if ("name".equals(key)) {
+                    info_name = stringOrNull();
+                } else if ("colorId".equals(key)) {
+                    char c = peek();
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        color_num = (int) number();
+                        color_id = Integer.toString(color_num);
+                    } else if (c == '"') {
+                        // as optInt() would
+                        color_id = string();
+                        try {
+                            color_num = Integer.parseInt(color_id);
+                        } catch (NumberFormatException e) {
+                        }
+                    } else {
+                        skipValue();
+                    }
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+
+        // ********** tokens
+
+        void skipSpace() {
+            while (pos < s.length() && s.charAt(pos) <= ' ') {
+                pos++;
+            }
+        }
+
+        char peek() {
+            skipSpace();
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        boolean tryConsume(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws PadException {
+            if (!tryConsume(c)) {
+                throw new PadException("expected '" + c + "' at " + pos + " in message: " + s);
+            }
+        }
+
+        String stringOrNull() throws PadException {
+            if (peek() == 'n') {
+                literal("null");
+                return null;
+            }
+            return string();
+        }
+
+        String string() throws PadException {
+            expect('"');
+            int start = pos;
+            // no escapes, the usual case, is just a substring
+            while (s.charAt(pos) != '"') {
+                if (s.charAt(pos) == '\\') {
+                    return escapedString(start);
+                }
+                pos++;
+            }
+            return s.substring(start, pos++);
+        }
+
+        private String escapedString(int start) throws PadException {
+            StringBuilder sb = new StringBuilder(s.length() - start);
+            sb.append(s, start, pos);
+            while (true) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+
+                c = s.charAt(pos++);
+                switch (c) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    // \" \\ \/
+                    sb.append(c);
+                }
+            }
+        }
+
+        long number() throws PadException {
+            skipSpace();
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new PadException("expected a number at " + pos + " in message: " + s);
+            }
+            String n = s.substring(start, pos);
+            // integers are all we want, but don't choke on 1.0
+            if (n.indexOf('.') >= 0 || n.indexOf('e') >= 0 || n.indexOf('E') >= 0) {
+                return (long) Double.parseDouble(n);
+            }
+            return Long.parseLong(n);
+        }
+
+        boolean bool() throws PadException {
+            if (peek() == 't') {
+                literal("true");
+                return true;
+            }
+            literal("false");
+            return false;
+        }
+
+        void literal(String word) throws PadException {
+            if (!s.startsWith(word, pos)) {
+                throw new PadException("expected " + word + " at " + pos + " in message: " + s);
+            }
+            pos += word.length();
+        }
+
+        void skipValue() throws PadException {
+            char c = peek();
+            if (c == '"') {
+                // skipping, so escapes don't matter beyond not ending on \"
+                pos++;
+                while (s.charAt(pos) != '"') {
+                    pos += (s.charAt(pos) == '\\') ? 2 : 1;
+                }
+                pos++;
+            } else if (c == '{' || c == '[') {
+                char close = (c == '{') ? '}' : ']';
+                pos++;
+                if (tryConsume(close)) {
+                    return;
+                }
+                do {
+                    if (c == '{') {
+                        string();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (tryConsume(','));
+                expect(close);
+            } else if (c == 't') {
+                literal("true");
+            } else if (c == 'f') {
+                literal("false");
+            } else if (c == 'n') {
+                literal("null");
+            } else {
+                number();
+            }
+        }
+    }
+}
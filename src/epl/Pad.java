@@ -3,15 +3,27 @@ package epl;
 import org.json.*;
 import java.util.Iterator;
 import java.util.ArrayList;
-import java.util.Queue;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.io.File;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.net.URL;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.net.MalformedURLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 
 // class for talking to an Etherpad Lite server about a particular pad
@@ -20,56 +32,121 @@ import java.util.logging.*;
 
 public class Pad {
 
-    class PadLogHandler extends Handler {
+    static class PadLogHandler extends Handler {
         XMLFormatter formatter = null;
         URL err_url;
-        String sid;
-        public PadLogHandler(URL err_url, String sid) {
+        // a reconnect can bring a new session
+        volatile String sid;
+        Pad pad;    // only log while this is connected, if set
+        public PadLogHandler(URL err_url, String sid, Pad pad) {
             this.err_url = err_url;
             this.sid = sid;
+            this.pad = pad;
             formatter = new XMLFormatter();
         }
         public void close() { formatter = null; }
         public void flush() { } // no buffering
         public void publish(LogRecord r) {
-            if (r != null && connection != null) {
-                connection.sendClientError(err_url, sid, formatter.format(r));
+            if (r != null && (pad == null || pad.connection != null)) {
+                PadConnection.sendClientError(err_url, sid, formatter.format(r));
             }
         }
     }
 
-    static final Pattern cursor_chat_regex = Pattern.compile("!cursor!(\\d+)(-(\\d+))?");
+    // warnings and up go to the server's /jserror, along with what was
+    // logged in the lead up to them
+    static Handler serverLogHandler(URL url, String session_token, Pad pad) throws MalformedURLException {
+        return serverLogHandler(serverLogTarget(url, session_token, pad));
+    }
+
+    // what serverLogHandler() buffers for, kept to change its session
+    static PadLogHandler serverLogTarget(URL url, String session_token, Pad pad) throws MalformedURLException {
+        URL err_url;
+
+        {
+            int port = url.getPort();
+            if (port == -1) {
+                port = url.getDefaultPort();
+            }
+            err_url = new URL(url.getProtocol(), url.getHost(), port, "/jserror");
+        }
+        return new PadLogHandler(err_url, session_token, pad);
+    }
+
+    static Handler serverLogHandler(PadLogHandler target) {
+        return new MemoryHandler(target, 1000, Level.WARNING);
+    }
 
     // following the documentation (Etherpad and EasySync Technical Manual):
     // []A: server_text (the last known shared revision)
     //   X: sent_changes (changes we have make locally and transmitted that have not been ack'd)
     //   Y: pending_changes (changes we have made locally and not transmitted yet)
     //   V: client_text (our local version)
-    private String server_text;
+    // the texts are Ropes so that applying a change shares structure with
+    // the previous revision rather than copying the whole document
+    private Rope server_text;
     private long server_rev;
     private long server_time_offset;
 
-    private String client_text;
+    private Rope client_text;
     private long client_rev;
 
-    private boolean read_only;
-    private String read_only_pad_id;
+    private volatile boolean read_only;
+    private volatile String read_only_pad_id;
 
     private Changeset sent_changes;
     private Changeset pending_changes;
-
-    // queue of unprocessed messages
-    private Queue<JSONObject> collabroom_messages;
+    // local edits made since pending_changes was last folded, starting with
+    // pending_changes itself; composing them one by one as they're made
+    // would be quadratic, see foldLocalEdits()
+    private Changeset.Composer local_edits;
+
+    // queue of unprocessed messages, filled by the network thread without
+    // taking the pad's lock; replaced by setInbox() before connecting
+    private volatile Inbox collabroom_messages;
+    // set when the inbox refused a message and we dropped the connection,
+    // what's left in it is from the old connection
+    private volatile boolean inbox_overflowed = false;
+    // cursors from the inbox not applied yet, by user, see updateInternal()
+    private final LinkedHashMap<String, Messages.ChatMessage> pending_cursors = new LinkedHashMap<String, Messages.ChatMessage>();
+    // cursors passed over for a later one from the same user
+    private long cursors_superseded = 0;
+
+    // when local edits go out, see setCommitScheduler()
+    private volatile CommitScheduler commit_scheduler;
+    // sends edits the scheduler held back once their time comes
+    private ScheduledFuture<?> commit_timer = null;
+    // when our cursor goes out, see setCursorBroadcaster()
+    private volatile CursorBroadcaster cursor_broadcaster;
+    // wakes the pad to send a cursor move the broadcaster held back
+    private ScheduledFuture<?> cursor_timer = null;
+
+    // keeps the state on disk, see setJournal()
+    private PadJournal journal = null;
 
     // we maintain the positions of markers which get jostled around by
     // remote and local updates
-    ArrayList<Marker> markers;
+    final MarkerTable markers;
+    // and ranges, see addRange()
+    private RangeTree ranges;
 
     HashMap<String, Avatar> user_avatars;
 
     private volatile JSONObject client_vars; // initial state from the server
     private boolean client_vars_new;
 
+    // after reconnecting, the server sends the revisions we missed since
+    // server_rev rather than the whole text again, unless there are more
+    // than max_catch_up of them, see setMaxCatchUp()
+    static final int DEFAULT_MAX_CATCH_UP = 1000;
+    private volatile int max_catch_up = DEFAULT_MAX_CATCH_UP;
+    // set from CLIENT_VARS, or catching up after reconnecting, until the
+    // connection drops
+    private volatile boolean caught_up = false;
+    // there were too many to catch up on, ignore the rest while we
+    // reconnect for CLIENT_VARS instead
+    private boolean full_reload = false;
+
     private URL url;
     private String session_token;
     private String token;
@@ -78,10 +155,101 @@ public class Pad {
     private String pad_id;
 
     private Logger logger;
-
-    private PadConnection connection;
+    private Handler log_handler;
+    // for a standalone pad, what log_handler sends on to the server
+    private PadLogHandler log_target;
+    // set if we're one of a PadClient's pads
+    private PadClient client = null;
+
+    private volatile PadConnection connection;
+    // outgoing messages are written out here, see Messages
+    private final StringBuilder send_buf = new StringBuilder(256);
     private boolean failed_connecting = false;
 
+    // how NEW_CHANGES checks that the server would end up with our text
+    public enum VerifyMode {
+        OFF,        // don't check
+        SAMPLED,    // compare the whole text every verify_interval revisions
+        HASH        // compare content hashes every revision
+    }
+
+    private VerifyMode verify_mode = VerifyMode.HASH;
+    private int verify_interval = 100;
+    private int revs_since_verify = 0;
+
+    // what the read accessors (getState(), getCursors(), isAwaitingAck(),
+    // isSendPending()) see: never modified, just replaced at the end of each
+    // state transition, so that reading never takes the pad's lock and never
+    // waits behind update() working through the message queue
+    private static final class Snapshot {
+        final Rope server_text;
+        final long server_rev;
+        final Rope client_text;
+        final long client_rev;
+        final MarkerTable.Published markers;
+        final Avatar[] avatars;     // detached copies
+        final boolean awaiting_ack;
+        final boolean send_pending;
+
+        Snapshot(Rope server_text, long server_rev, Rope client_text, long client_rev,
+                MarkerTable.Published markers, Avatar[] avatars, boolean awaiting_ack, boolean send_pending) {
+            this.server_text = server_text;
+            this.server_rev = server_rev;
+            this.client_text = client_text;
+            this.client_rev = client_rev;
+            this.markers = markers;
+            this.avatars = avatars;
+            this.awaiting_ack = awaiting_ack;
+            this.send_pending = send_pending;
+        }
+    }
+
+    private volatile Snapshot snapshot;
+
+    // ********** listeners and push mode, see PadListener and startPush()
+
+    private final CopyOnWriteArrayList<PadListener> listeners = new CopyOnWriteArrayList<PadListener>();
+
+    // something for the listeners to hear about
+    private static abstract class Event {
+        abstract void fire(Pad pad, PadListener l);
+    }
+
+    // queued under the lock, fired once it's released, see fireEvents()
+    private final ArrayList<Event> events = new ArrayList<Event>();
+    // held while firing so that events from different update()s can't
+    // overtake each other
+    private final Object fire_lock = new Object();
+
+    private volatile Executor push_executor = null;
+    // the executor startPush() made, if it made one, to shut down after
+    private ExecutorService own_push_executor = null;
+    // there's an update on the way from push_executor
+    private final AtomicBoolean push_scheduled = new AtomicBoolean(false);
+
+    // after the connection drops, push mode and awaitUpdate() connect again
+    // by themselves, see reconnectIfDue(); the wait between tries doubles
+    // from the min to the max, give or take half of it so that pads dropped
+    // together don't all come back at once
+    static final long RECONNECT_MIN_MS = 1000;
+    static final long RECONNECT_MAX_MS = 60 * 1000;
+    // set when the connection dropped rather than being closed by
+    // disconnect(), which sets closing until the next connect()
+    private volatile boolean dropped = false;
+    private volatile boolean closing = false;
+    // tries since we were last connected, and when the next is due
+    private int reconnect_attempts = 0;
+    private long next_reconnect_ns;
+
+    // for awaitUpdate(), a lock rather than the pad's monitor so waiting
+    // doesn't pin a virtual thread
+    private final ReentrantLock wake_lock = new ReentrantLock();
+    private final Condition wake = wake_lock.newCondition();
+    // guarded by wake_lock
+    private boolean woken = false;
+
+    static final int DEFAULT_INBOX_CAPACITY = 1 << 14;
+
     public Pad(
         URL url,
         String client_id,   // can be ""
@@ -101,27 +269,34 @@ public class Pad {
         this.pad_id = pad_id;
         this.session_token = session_token;
 
-        server_text = "\n";
+        server_text = Rope.of("\n");
         server_rev = 0;
         server_time_offset = 0;
-        client_text = "\n";
+        client_text = server_text;
         client_rev = 0;
 
         client_vars = null;
         client_vars_new = false;
 
-        sent_changes = null;
-        pending_changes = null;
+        // so edits can be made before connecting
+        sent_changes = Changeset.identity(server_text.length());
+        pending_changes = sent_changes;
+        local_edits = new Changeset.Composer();
         logger = null;
 
         read_only = true;
         read_only_pad_id = null;
 
-        collabroom_messages = new LinkedList<JSONObject> ();
+        collabroom_messages = new Inbox(DEFAULT_INBOX_CAPACITY, Inbox.Policy.BLOCK);
+        commit_scheduler = new CommitScheduler();
+        cursor_broadcaster = new CursorBroadcaster();
 
-        markers = new ArrayList<Marker> ();
+        markers = new MarkerTable();
+        ranges = new RangeTree();
 
         user_avatars = new HashMap<String, Avatar> ();
+
+        publish();
     }
 
     // shorthand constructor for an anonymous connection
@@ -129,36 +304,87 @@ public class Pad {
         this(url, "", null, pad_id, null);
     }
 
-    public synchronized void connect() throws IOException, PadException {
-        if (failed_connecting) {
-            throw new PadException("already tried and failed to connect");
+    public void connect() throws IOException, PadException {
+        connect(false);
+    }
+
+    // the session token, and a PadClient's log handler, are got without
+    // holding our lock: fetching a token is a round trip to the server, and
+    // a virtual thread holding a monitor that long pins its carrier
+    private void connect(boolean reconnecting) throws IOException, PadException {
+        String token;
+        synchronized (this) {
+            if (failed_connecting) {
+                throw new PadException("already tried and failed to connect");
+            }
+            if (connection != null) {
+                throw new PadException("already have a connection!");
+            }
+            token = session_token;
         }
 
-        if (session_token == null) {
-            session_token = PadConnection.getSessionToken(url);
+        if (token == null) {
+            token = (client != null) ? client.sessionToken() : PadConnection.getSessionToken(url);
         }
+        Handler client_log_handler = (client != null) ? client.logHandler() : null;
 
-        if (connection != null) {
-            throw new PadException("already have a connection!");
+        synchronized (this) {
+            if (reconnecting && closing) {
+                // disconnect()ed meanwhile
+                return;
+            }
+            if (connection != null) {
+                throw new PadException("already have a connection!");
+            }
+            closing = false;
+            session_token = token;
+            connectInternal(client_log_handler);
         }
+    }
 
+    // only call when synchronized
+    private void connectInternal(Handler client_log_handler) throws IOException, PadException {
         connection = new PadConnection(this);
 
-        URL err_url;
-
-        {
-            int port = url.getPort();
-            if (port == -1) {
-                port = url.getDefaultPort();
+        if (client == null) {
+            // made once, a pad reconnecting over and over mustn't leave a
+            // handler behind each time
+            if (log_handler == null) {
+                log_target = serverLogTarget(url, session_token, this);
+                log_handler = serverLogHandler(log_target);
+                if (logger == null) {
+                    logger = Logger.getAnonymousLogger();
+                }
+                logger.addHandler(log_handler);
+            } else {
+                log_target.sid = session_token;
             }
-            err_url = new URL(url.getProtocol(), url.getHost(), port, "/jserror");
+        } else {
+            log_handler = client_log_handler;
         }
-        MemoryHandler log_handler = new MemoryHandler(new PadLogHandler(err_url, session_token), 1000, Level.WARNING);
-        logger = Logger.getAnonymousLogger();
-        logger.addHandler(log_handler);
         connection.connect(url, session_token, log_handler);
     }
 
+    // attach to an already constructed connection rather than opening a
+    // socket, used to run against the simulated server in the tests
+    synchronized void connect(PadConnection connection) throws PadException {
+        if (this.connection != null) {
+            throw new PadException("already have a connection!");
+        }
+
+        this.connection = connection;
+        closing = false;
+        if (logger == null) {
+            logger = Logger.getAnonymousLogger();
+        }
+    }
+
+    // share a PadClient's session token and logging instead of having our own
+    synchronized void setClient(PadClient client, Logger logger) {
+        this.client = client;
+        this.logger = logger;
+    }
+
     public synchronized void logThrowableToServer(Throwable e) {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(os, true);
@@ -189,16 +415,38 @@ public class Pad {
         }
     }
 
-    void onDisconnect(boolean was_connecting) {
+    void onDisconnect(PadConnection c, boolean was_connecting) {
         System.err.println("onDisconnect("+was_connecting+")");
+        if (c != connection) {
+            // one we'd already let go of
+            return;
+        }
         connection = null;
-        client_vars = null;
+        caught_up = false;
+        // client_vars is kept for the color palette, if we pick up where
+        // we left off there won't be another
         client_vars_new = false;
+        // the server may have expired it, which is also how it'd turn us
+        // away; a PadClient's pads all share one, so it's told too
+        String stale_token = session_token;
         session_token = null;
+        if (client != null && stale_token != null && !closing) {
+            client.sessionTokenExpired(stale_token);
+        }
 
         if (was_connecting) {
             failed_connecting = true;
         }
+        dropped = !closing;
+
+        synchronized (this) {
+            queueEvent(new Event() {
+                void fire(Pad pad, PadListener l) {
+                    l.disconnected(pad);
+                }
+            });
+        }
+        wakeUp();
     }
 
     void onMessage(JSONObject json) {
@@ -210,29 +458,141 @@ public class Pad {
         }
     }
 
+    // for transports that hand over the text, COLLABROOM messages are
+    // decoded straight from it, see Messages
+    void onMessage(String text) {
+        try {
+            Messages.CollabRoom message = Messages.decode(text);
+            if (message != null) {
+                queueCollabRoom(message);
+            } else {
+                handleIncomingMessage(new JSONObject(text));
+            }
+        } catch (JSONException e) {
+            // the server's problem, we carry on without it
+            Logger l = logger;
+            if (l != null) {
+                l.log(Level.WARNING, "pad " + pad_id + " couldn't parse message: " + text, e);
+            }
+        } catch (PadException e) {
+            Logger l = logger;
+            if (l != null) {
+                l.log(Level.SEVERE, "pad " + pad_id + " couldn't handle message: " + text, e);
+            }
+        }
+    }
+
     public synchronized void disconnect() {
         // TODO: sent changes must be considered lost, merge back into pending
         // Though we might want to keep sent changes to check the resync diffs for whether
         // the server did eventually get our last transmission
+        closing = true;
+        dropped = false;
         if (connection != null) {
             connection.disconnect();
         }
+        stopPush();
+        // the socket's logger is static, and the handler holds on to us
+        if (client == null && log_handler != null) {
+            PadConnection.removeLogHandler(log_handler);
+        }
+
+        if (journal != null) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+    }
+
+    // these read volatiles or the snapshot and don't lock
+
+    public boolean isConnected() {
+        PadConnection c = connection;
+        return (c != null && c.isConnected() && caught_up);
+    }
+
+    public boolean isConnecting() {
+        PadConnection c = connection;
+        return (c != null && c.isConnecting()) || (c != null && c.isConnected() && !caught_up);
+    }
+
+    public boolean isAwaitingAck() {
+        return snapshot.awaiting_ack;
+    }
+
+    public boolean isSendPending() {
+        return snapshot.send_pending;
+    }
+
+    // interval is only used for SAMPLED
+    public synchronized void setVerifyMode(VerifyMode mode, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("verify interval must be at least 1");
+        }
+        verify_mode = mode;
+        verify_interval = interval;
+        revs_since_verify = 0;
+    }
+
+    public synchronized VerifyMode getVerifyMode() {
+        return verify_mode;
+    }
+
+    // set the capacity and policy of the queue of incoming messages,
+    // must be done before connecting
+    public synchronized void setInbox(int capacity, Inbox.Policy policy) {
+        if (connection != null) {
+            throw new IllegalStateException("inbox must be set before connecting");
+        }
+        collabroom_messages = new Inbox(capacity, policy);
+    }
+
+    // for its metrics
+    public Inbox getInbox() {
+        return collabroom_messages;
+    }
+
+    // cursor messages from the inbox that weren't applied, as a later one
+    // from the same user came in the same update() (the inbox's own
+    // coalescing when full is counted there)
+    public synchronized long getSupersededCursorCount() {
+        return cursors_superseded;
+    }
+
+    // hold local edits back to be sent together, see CommitScheduler; times
+    // in ms, the default is (0, Integer.MAX_VALUE, 0), sending whenever
+    // update(true, ...) can
+    public synchronized void setCommitScheduler(long min_interval, int max_batch, long max_latency) {
+        commit_scheduler = new CommitScheduler(min_interval, max_batch, max_latency);
     }
 
-    public synchronized boolean isConnected() {
-        return (connection != null && connection.isConnected() && client_vars != null);
+    public CommitScheduler getCommitScheduler() {
+        return commit_scheduler;
     }
 
-    public synchronized boolean isConnecting() {
-        return (connection != null && connection.isConnecting()) || (connection != null && connection.isConnected() && client_vars == null);
+    // send our cursor at most once per interval ms, see CursorBroadcaster;
+    // the default, 0, sends every move that changes anything
+    public synchronized void setCursorBroadcaster(long interval) {
+        cursor_broadcaster = new CursorBroadcaster(interval);
     }
 
-    public synchronized boolean isAwaitingAck() {
-        return (sent_changes != null && !sent_changes.isIdentity());
+    public CursorBroadcaster getCursorBroadcaster() {
+        return cursor_broadcaster;
     }
 
-    public synchronized boolean isSendPending() {
-        return (pending_changes != null && !pending_changes.isIdentity());
+    // on reconnecting, catch up on at most this many missed revisions, if
+    // it's been more get the whole text again instead; 0 always gets the
+    // whole text, except with changes in flight, when catching up is the
+    // only way to find out whether they got there
+    // (the server sends them all either way, this only saves transforming
+    // our local changes through them)
+    public void setMaxCatchUp(int revs) {
+        if (revs < 0) {
+            throw new IllegalArgumentException("max catch up must be at least 0");
+        }
+        max_catch_up = revs;
     }
 
     public boolean isReadOnly() {
@@ -264,7 +624,7 @@ public class Pad {
         if ("CLIENT_VARS".equals(type)) {
             setClientVars(json);
         } else if ("COLLABROOM".equals(type)) {
-            queueCollabRoom(json);
+            queueCollabRoom(Messages.collabRoom(json));
         } else {
             // unhandled message type
             System.out.print("unknown message type: " + type + ", keys: ");
@@ -282,22 +642,27 @@ public class Pad {
             throw new PadException("no connection to send on");
         }
 
-        HashMap client_ready_req = new HashMap<String, Object>() {{
-            put("component", "pad");
-            put("type", "CLIENT_READY");
-            put("padId", pad_id);
-            put("sessionID", null);
-            put("token", token);
-            put("password", null);
-            put("protocolVersion", 2);
-        }};
-
-        JSONObject client_ready_json = new JSONObject(client_ready_req);
-
-        connection.send(client_ready_json);
+        // anything still queued came on an earlier connection, and what we
+        // get sent now covers it: missed revisions (ours included, which is
+        // how an ACCEPT_COMMIT that never got handled turns up again) or the
+        // whole text
+        collabroom_messages.clear();
+        cursor_broadcaster.connected();
+
+        if (user_id != null && (!sent_changes.isIdentity() || (!full_reload && max_catch_up > 0))) {
+            // we've been connected before, pick up from server_rev with
+            // CLIENT_RECONNECTs, see updateInternal(); always when there's
+            // something in flight, there's no other way to find out if it
+            // got there
+            connection.send(Messages.clientReconnect(send_buf, pad_id, token, server_rev));
+        } else {
+            connection.send(Messages.clientReady(send_buf, pad_id, token));
+        }
     }
 
     private synchronized void setClientVars(JSONObject json) throws PadException {
+        foldLocalEdits();
+
         try {
             client_vars = json.getJSONObject("data");
             client_vars_new = true;
@@ -311,72 +676,195 @@ public class Pad {
             JSONObject collab_client_vars = client_vars.getJSONObject("collab_client_vars");
 
             long old_server_rev = server_rev;
-            String old_server_text = server_text;
+            Rope old_server_text = server_text;
 
-            server_text = collab_client_vars.getJSONObject("initialAttributedText").getString("text");
+            server_text = Rope.of(collab_client_vars.getJSONObject("initialAttributedText").getString("text"));
             server_rev = collab_client_vars.getLong("rev");
 
-            if (pending_changes != null && !pending_changes.isIdentity()) {
-                // TODO: handle merging in offline changes
-                // client should be able to get an update from the server of what has changed
-                // since the previous server_rev
-
-                // for now we have to abort if we have local changes that
-                // we can't relate to the current server_rev
-                if (server_rev != old_server_rev) {
-                    throw new PadException("out of date: " + server_rev + " != " + old_server_rev);
-                }
+            boolean has_local = !sent_changes.isIdentity() || !pending_changes.isIdentity();
+            boolean unmoved = (server_rev == old_server_rev && server_text.equals(old_server_text));
+            if (has_local && !unmoved && !sent_changes.isIdentity()) {
+                // we can't tell whether what was in flight made it into the
+                // text or not, it takes catching up by revision to know
+                throw new PadException("out of date: " + server_rev + " != " + old_server_rev);
             }
 
-            client_text = server_text;
-            client_rev = server_rev;
-
             if (client_vars.has("chatHistory")) {
                 JSONArray chat_history = client_vars.getJSONArray("chatHistory");
                 for (int i = 0; i < chat_history.length(); i++) {
                     JSONObject chat_entry = chat_history.getJSONObject(i);
-                    handleChat(chat_entry.getString("text"), chat_entry.getString("userId"), chat_entry.optString("userName", null), chat_entry.getLong("time"));
+                    handleChat(new Messages.ChatMessage(chat_entry.getString("userId"), chat_entry.optString("userName", null),
+                        chat_entry.getString("text"), chat_entry.getLong("time")));
+                }
+            }
+
+            if (has_local && unmoved) {
+                // the server's where we left it, so it never got what was in
+                // flight; it all goes again with the rest
+                try {
+                    pending_changes = Changeset.compose(sent_changes, pending_changes);
+                } catch (ChangesetException e) {
+                    throw new PadException("error merging local changes on CLIENT_VARS", e);
+                }
+                client_rev = -1;
+            } else if (has_local) {
+                // nothing was in flight, so everything that changed since is
+                // someone else's, one big remote change for the pending
+                // changes to go on top of
+                try {
+                    Changeset B = Changeset.diff(old_server_text, server_text);
+                    Changeset D = Changeset.follow(pending_changes, B, false);
+                    pending_changes = Changeset.follow(B, pending_changes, true);
+                    client_text = D.applyToText(client_text);
+                    translateMarkers(D);
+                } catch (ChangesetException e) {
+                    throw new PadException("error rebasing local changes on CLIENT_VARS", e);
                 }
+                client_rev = -1;
+            } else {
+                pending_changes = Changeset.identity(server_text.length());
+                client_text = server_text;
+                client_rev = server_rev;
             }
+            sent_changes = Changeset.identity(server_text.length());
+            journalSnapshot();
+
+            caught_up = true;
+            full_reload = false;
 
-            pending_changes = sent_changes = Changeset.identity(server_text.length());
+            queueConnected();
         } catch (JSONException e) {
             throw new PadException("exception getting CLIENT_VARS data", e);
+        } finally {
+            publish();
         }
+        wakeUp();
     }
 
-    private synchronized void queueCollabRoom(JSONObject json) throws PadException {
-        collabroom_messages.add(json);
+    // called on the network thread, doesn't lock
+    private void queueCollabRoom(Messages.CollabRoom message) throws PadException {
+        if (!collabroom_messages.offer(message)) {
+            // only with Inbox.Policy.DISCONNECT; we're too far behind, so
+            // drop the connection and start over with fresh CLIENT_VARS
+            inbox_overflowed = true;
+            PadConnection c = connection;
+            if (c != null) {
+                c.disconnect();
+            }
+            throw new PadException("inbox full, disconnecting: " + collabroom_messages);
+        }
+        wakeUp();
     }
 
     // returns true if there is something new for the client
-    public synchronized boolean update(boolean is_sending, boolean is_receiving) throws PadException {
+    // listeners hear about what happened before this returns
+    public boolean update(boolean is_sending, boolean is_receiving) throws PadException {
+        boolean has_new;
+
+        synchronized (this) {
+            try {
+                has_new = updateInternal(is_sending, is_receiving);
+            } finally {
+                publish();
+            }
+        }
+
+        fireEvents();
+        return has_new;
+    }
+
+    // only call when synchronized
+    private boolean updateInternal(boolean is_sending, boolean is_receiving) throws PadException {
         boolean has_new = false;
 
+        foldLocalEdits();
+
         if (is_receiving) {
             if (client_vars != null && client_vars_new) {
                 has_new = true;
                 client_vars_new = false;
             }
 
-            while (!collabroom_messages.isEmpty()) {
-                JSONObject json = collabroom_messages.poll();
-                JSONObject data;
-                String collab_type;
+            if (inbox_overflowed) {
+                inbox_overflowed = false;
+                collabroom_messages.clear();
+            }
 
-                try {
-                    data = json.getJSONObject("data");
-                    collab_type = data.getString("type");
-                } catch (JSONException e) {
-                    throw new PadException("error getting COLLABROOM metadata", e);
+            // consecutive NEW_CHANGES are gathered up and handled together
+            // cursors are held back likewise, and of those from one user
+            // only the latest counts; they're applied once the changes
+            // before them are, and before anything after
+            pending_cursors.clear();
+            ArrayList<Messages.NewChanges> new_changes = new ArrayList<Messages.NewChanges>();
+            // the revision what's been gathered takes us to; a revision can
+            // turn up twice, when we got CLIENT_VARS ahead of it
+            long rev = server_rev;
+
+            Messages.CollabRoom message;
+            while ((message = collabroom_messages.poll()) != null) {
+                boolean caught_up_now = false;
+
+                if (message instanceof Messages.ClientReconnect) {
+                    Messages.ClientReconnect missed = (Messages.ClientReconnect) message;
+
+                    // only worth it if there's something in flight that it
+                    // takes catching up by revision to find out about
+                    if (!missed.no_changes && missed.head_rev - rev > max_catch_up && sent_changes.isIdentity()) {
+                        abandonCatchUp(missed.head_rev - rev);
+                        continue;
+                    }
+
+                    caught_up_now = missed.isLast();
+                    message = catchUpMessage(missed, rev);
+                }
+
+                if (message instanceof Messages.ChatMessage && ((Messages.ChatMessage) message).isCursor()) {
+                    Messages.ChatMessage chat = (Messages.ChatMessage) message;
+                    if (pending_cursors.put(chat.user_id, chat) != null) {
+                        cursors_superseded++;
+                    }
+                } else if (message instanceof Messages.NewChanges) {
+                    Messages.NewChanges changes = (Messages.NewChanges) message;
+                    if (changes.new_rev > rev) {
+                        if (!pending_cursors.isEmpty()) {
+                            // the cursors are as of the changes before them
+                            if (handleNewChangesRun(new_changes)) {
+                                has_new = true;
+                            }
+                            handlePendingCursors();
+                        }
+                        new_changes.add(changes);
+                        rev = changes.new_rev;
+                    }
+                } else {
+                    if (handleNewChangesRun(new_changes)) {
+                        has_new = true;
+                    }
+                    handlePendingCursors();
+                    if (message != null && handleCollabRoom(message)) {
+                        has_new = true;
+                    }
+                    rev = server_rev;
                 }
 
-                if (handleCollabRoom(data, collab_type)) {
+                if (caught_up_now) {
+                    if (handleNewChangesRun(new_changes)) {
+                        has_new = true;
+                    }
+                    handlePendingCursors();
+                    finishCatchUp();
                     has_new = true;
                 }
             }
 
-            if (connection == null) {
+            if (handleNewChangesRun(new_changes)) {
+                has_new = true;
+            }
+            handlePendingCursors();
+
+            // pushed pads and PadClient's reconnect with backoff, and
+            // not holding our lock, see reconnectIfDue()
+            if (connection == null && client == null && push_executor == null) {
                 try {
                     connect();
                 } catch (IOException e) {
@@ -388,57 +876,64 @@ public class Pad {
         if (is_sending && !read_only) {
             commitChanges();
         }
+        if (is_sending) {
+            sendCursorIfDue();
+        }
 
         return has_new;
     }
 
     // The main accessor, get a completely coherent snapshot.
-    // It is up to the client to not make any changes (by a call to
-    // update() or any of the change methods) if the client_text
-    // herein is to remain accurate
-    public synchronized TextState getState() {
-        Marker[] client_markers = new Marker[markers.size()];
-        Avatar[] avatars = new Avatar[user_avatars.size()];
-        
-        client_markers = markers.toArray(client_markers);
-        return new TextState(server_text, server_rev, client_text, client_rev, client_markers);
+    // Doesn't lock, it's the state as of the end of the last update() or
+    // change, and later changes won't affect it
+    public TextState getState() {
+        Snapshot s;
+        Marker[] client_markers;
+        // the markers' buffer is only ours to read in between, see
+        // MarkerTable.snapshot()
+        markers.startRead();
+        try {
+            s = snapshot;
+            client_markers = s.markers.unpack();
+        } finally {
+            markers.endRead();
+        }
+        return new TextState(s.server_text, s.server_rev, s.client_text, s.client_rev, client_markers);
     }
 
     // only call when synchronized
     // return true if anything was actually sent
     private boolean commitChanges() throws PadException {
-        if (connection == null || !connection.isConnected()) {
+        if (connection == null || !connection.isConnected() || !caught_up) {
             return false;
         }
 
         if ((sent_changes == null || sent_changes.isIdentity()) &&
          (pending_changes != null && !pending_changes.isIdentity())) {
-            JSONObject user_changes;
+            long now = System.nanoTime();
+            long delay = commit_scheduler.delay(now);
+            if (delay > 0) {
+                commit_scheduler.deferred();
+                scheduleCommit(delay);
+                return false;
+            }
 
-            try {
-                user_changes = new JSONObject() {{
-                    put("component", "pad");
-                    put("type", "COLLABROOM");
-                    put("data", new JSONObject() {{
-                        put("type", "USER_CHANGES");
-                        put("baseRev", server_rev);
-                        put("changeset", pending_changes);
-
-                        // dummy empty attribute pool
-                        put("apool", new JSONObject() {{
-                            put("numToAttrib", new Object[] {});
-                            put("nextNum",0);
-                        }});
-                    }});
-                }};
-            } catch (JSONException e) {
-                throw new PadException("failed building USER_CHANGES JSON", e);
+            // journaled first: if we go down in between, catching up after
+            // finds out whether it got there, see catchUpMessage()
+            if (journal != null) {
+                try {
+                    journal.sent();
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
             }
 
-            connection.send(user_changes);
+            connection.send(Messages.userChanges(send_buf, server_rev, pending_changes));
 
             sent_changes = pending_changes;
             pending_changes = Changeset.identity(sent_changes.newLen);
+            commit_scheduler.sent(now);
+            journalSnapshotIfDue();
 
             return true;
         }
@@ -447,139 +942,258 @@ public class Pad {
     }
 
     // only call when synchronized
+    // a run of consecutive NEW_CHANGES, composed into one changeset B so that
+    // the transform against our pending changes, and applying the result to
+    // the texts, markers and avatars, happens once for the whole run
     // returns true if there's something new for the client
-    private boolean handleCollabRoom(JSONObject data, String collab_type) throws PadException {
+    private boolean handleNewChanges(ArrayList<Messages.NewChanges> run) throws PadException {
+        int count = run.size();
+        Changeset[] Bs = new Changeset[count];
+        String[] authors = new String[count];
+        long[] times = new long[count];
+        long new_rev = server_rev;
+
+        for (int i = 0; i < count; i++) {
+            Messages.NewChanges m = run.get(i);
+            try {
+                Bs[i] = new Changeset(m.changeset);
+            } catch (ChangesetException e) {
+                throw new PadException("NEW_CHANGES broke on "+m, e);
+            }
+            new_rev = m.new_rev;
+            times[i] = m.time;
+            authors[i] = m.author;
+        }
+
         boolean has_new = false;
+        Changeset B = null;
 
-        if ("NEW_CHANGES".equals(collab_type)) {
-            String changeset_str;
-            try {
-                changeset_str = data.getString("changeset");
-            } catch (JSONException e) {
-                throw new PadException("error getting data from NEW_CHANGES", e);
+        // for reporting if the check below fails
+        Changeset old_sent_changes = sent_changes;
+        Changeset old_pending_changes = pending_changes;
+
+        try {
+            // This is the heart of the protocol, notation here is from
+            // the technical manual and Etherpad Lite's changesettracker.js
+
+            // A' = AB
+            B = (count == 1) ? Bs[0] : Changeset.composeAll(Arrays.asList(Bs));
+            Rope new_text = B.applyToText(server_text);
+
+            // X' = f(B, X)
+            // var c2 = c
+            Changeset fXB = B;
+            Changeset X_prime;
+
+            // if (submittedChangeset) 
+            if (!sent_changes.isIdentity()) {
+                // follow breaks ties between inserts at the same spot by
+                // what they insert, so it doesn't commute with compose; X
+                // has to go through the Bs one at a time to come out as the
+                // server will have it, f(X, B) is then the composition of
+                // f(X_i, B_i) along the way
+                X_prime = sent_changes;
+                Changeset[] fXBs = new Changeset[count];
+                for (int i = 0; i < count; i++) {
+                    // c2 = Changeset.follow(oldSubmittedChangeset, c, true, apool);
+                    fXBs[i] = Changeset.follow(X_prime, Bs[i], true);
+                    // var oldSubmittedChangeset = submittedChangeset;
+                    // submittedChangeset = Changeset.follow(c, oldSubmittedChangeset, false, apool);
+                    X_prime = Changeset.follow(Bs[i], X_prime, false);
+                }
+                fXB = (count == 1) ? fXBs[0] : Changeset.composeAll(Arrays.asList(fXBs));
+            } else {
+                // this identity just needs to change to reflect the new length
+                X_prime = Changeset.identity(B.newLen);
             }
 
-            String new_text;
-            long new_time;
-            long new_rev;
-            long time_delta = 0;
-            String cs_str;
-            String author;
 
-            // DEBUG
-            Changeset old_sent_changes = sent_changes;
-            Changeset old_pending_changes = pending_changes;
+            // Y' = f(f(X, B), Y)
+            // var preferInsertingAfterUserChanges = true;
+            // var oldUserChangeset = userChangeset;
+            // userChangeset = Changeset.follow(c2, oldUserChangeset, preferInsertingAfterUserChanges, apool);
+            Changeset Y_prime = Changeset.follow(fXB, pending_changes, true);
 
-            try {
-                // This is the heart of the protocol, notation here is from
-                // the technical manual and Etherpad Lite's changesettracker.js
+            // D = f(Y, f(X, B))
+            // var postChange = Changeset.follow(oldUserChangeset, c2, !preferInsertingAfterUserChanges, apool);
+            Changeset D = Changeset.follow(pending_changes, fXB, false);
+            sent_changes = X_prime;
+            pending_changes = Y_prime;
 
+            server_text = new_text;
+            server_rev = new_rev;
+
+            if (journal != null) {
                 try {
-                    cs_str = data.getString("changeset");
+                    journal.serverChanges(new_rev, B, sent_changes, pending_changes);
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+            journalSnapshotIfDue();
+
+            if (sent_changes.isIdentity() && pending_changes.isIdentity()) {
+                client_rev = new_rev;
+            } else {
+                client_rev = -1;
+            }
+
+            if (!D.isIdentity()) {
+                client_text = D.applyToText(client_text);
+                // the registered markers and ranges too
+                adjustAvatars(Bs, authors, times, D);
 
-                    new_rev = data.getLong("newRev");
-                    new_time = data.getLong("currentTime");
-                    if (!data.isNull("timeDelta")) {
-                        time_delta = data.getLong("timeDelta");
+                final Changeset change = D;
+                queueEvent(new Event() {
+                    void fire(Pad pad, PadListener l) {
+                        l.textChanged(pad, change);
                     }
-                    author = data.getString("author");
-                } catch (JSONException e) {
-                    throw new PadException("error updating from NEW_CHANGES", e);
-                }
+                });
 
-                // A' = AB
-                Changeset B = new Changeset(cs_str);
-                new_text = B.applyToText(server_text);
+                has_new = true;
+            }
+        } catch (ChangesetException e) {
+            throw new PadException("NEW_CHANGES broke on "+run, e);
+        }
 
-                // X' = f(B, X)
-                // var c2 = c
-                Changeset fXB = B;
-                Changeset X_prime;
+        try {
+            // check out that all these follows seem to work as intended
+            verifyInSync(count);
+        } catch (ChangesetException e) {
+            System.out.println("old sent changes = " + old_sent_changes.explain());
+            System.out.println("old pending changes = " + old_pending_changes.explain());
+            System.out.println("new changeset B=" + B.explain());
+            System.out.println("sent changes = " + sent_changes.explain());
+            System.out.println("pending changes = " + pending_changes.explain());
+            System.out.println();
+            throw new PadException("broke when checking pendings on new CS "+run, e);
+        }
 
-                // if (submittedChangeset) 
-                if (!sent_changes.isIdentity()) {
-                    // var oldSubmittedChangeset = submittedChangeset;
-                    // submittedChangeset = Changeset.follow(c, oldSubmittedChangeset, false, apool);
-                    X_prime = Changeset.follow(B, sent_changes, false);
-                    // c2 = Changeset.follow(oldSubmittedChangeset, c, true, apool);
-                    fXB = Changeset.follow(sent_changes, B, true);
-                } else {
-                    // this identity just needs to change to reflect the new length
-                    X_prime = Changeset.identity(B.newLen);
-                }
+        return has_new;
+    }
 
+    // only call when synchronized
+    // handles and clears the run if there's one
+    private boolean handleNewChangesRun(ArrayList<Messages.NewChanges> run) throws PadException {
+        if (run.isEmpty()) {
+            return false;
+        }
+        boolean has_new = handleNewChanges(run);
+        run.clear();
+        return has_new;
+    }
 
-                // Y' = f(f(X, B), Y)
-                // var preferInsertingAfterUserChanges = true;
-                // var oldUserChangeset = userChangeset;
-                // userChangeset = Changeset.follow(c2, oldUserChangeset, preferInsertingAfterUserChanges, apool);
-                Changeset Y_prime = Changeset.follow(fXB, pending_changes, true);
+    // only call when synchronized
+    // what a missed revision amounts to: ours is the server accepting what we
+    // had in flight, as ACCEPT_COMMIT would have said if the connection
+    // hadn't gone first, the rest are NEW_CHANGES; null if there's nothing
+    // to do (rev is what the messages so far have taken us to)
+    private Messages.CollabRoom catchUpMessage(Messages.ClientReconnect missed, long rev) {
+        if (missed.no_changes || missed.new_rev <= rev) {
+            return null;
+        }
+        if (missed.author.equals(user_id) && !sent_changes.isIdentity()) {
+            return new Messages.AcceptCommit(missed.new_rev);
+        }
+        return new Messages.NewChanges(missed.new_rev, missed.changeset, missed.author, missed.time);
+    }
 
-                // D = f(Y, f(X, B))
-                // var postChange = Changeset.follow(oldUserChangeset, c2, !preferInsertingAfterUserChanges, apool);
-                Changeset D = Changeset.follow(pending_changes, fXB, false);
+    // only call when synchronized
+    // we've had everything we missed while disconnected
+    private void finishCatchUp() throws PadException {
+        if (!sent_changes.isIdentity()) {
+            // what we had in flight wasn't among them, so the server never
+            // got it; it goes again with the rest
+            try {
+                pending_changes = Changeset.compose(sent_changes, pending_changes);
+            } catch (ChangesetException e) {
+                throw new PadException("error merging local changes after catching up", e);
+            }
+            sent_changes = Changeset.identity(server_text.length());
+            journalSnapshot();
+        }
 
-                sent_changes = X_prime;
-                pending_changes = Y_prime;
+        caught_up = true;
 
-                server_text = new_text;
-                server_rev = new_rev;
+        queueConnected();
+    }
 
-                if (sent_changes.isIdentity() && pending_changes.isIdentity()) {
-                    client_rev = new_rev;
-                } else {
-                    client_rev = -1;
-                }
+    // only call when synchronized
+    // drop the connection and reconnect for CLIENT_VARS instead; the rest
+    // of what's queued came on it, and goes with it
+    private void abandonCatchUp(long behind) {
+        logger.info("missed " + behind + " revisions, more than " + max_catch_up + ", reloading");
+        full_reload = true;
+        collabroom_messages.clear();
+
+        PadConnection c = connection;
+        if (c != null) {
+            c.disconnect();
+        }
+    }
 
-                if (!D.isIdentity()) {
-                    client_text = D.applyToText(client_text);
-                    translateMarkers(D);
+    // only call when synchronized
+    // after a run of remote changes Bs, each author's caret goes just after
+    // their last edit in it, everyone else's is moved along by D
+    private void adjustAvatars(Changeset[] Bs, String[] authors, long[] times, Changeset D) {
+        // make sure there's a cursor for each editing user
+        HashMap<String, Integer> last_edit = new HashMap<String, Integer>();
+        for (int i = 0; i < authors.length; i++) {
+            last_edit.put(authors[i], i);
+            if (user_avatars.get(authors[i]) == null) {
+                Avatar av = new Avatar(authors[i]);
+                user_avatars.put(authors[i], av);
+                av.setPos(0,0,0);
+                queueUserJoined(av);
+            }
+        }
 
-                    // make sure there's a cursor for the editing user
-                    if (user_avatars.get(author) == null) {
-                        Avatar av = new Avatar(user_id);
-                        user_avatars.put(author, av);
-                        av.setPos(0,0,0);
-                    }
-                    for (Iterator<Avatar> i = user_avatars.values().iterator(); i.hasNext(); ) {
-                        Avatar a = i.next();
-                        a.adjustForChangeset(author, D, new_time - server_time_offset);
-                    }
+        long run_time = times[times.length - 1] - server_time_offset;
 
-                    has_new = true;
-                }
-            } catch (ChangesetException e) {
-                throw new PadException("NEW_CHANGES broke on "+data, e);
+        // everyone else's go through D, with the registered markers
+        ArrayList<Avatar> moving = new ArrayList<Avatar>(user_avatars.size());
+        for (Avatar a : user_avatars.values()) {
+            if (last_edit.get(a.getUserId()) == null && run_time >= a.getTime()) {
+                moving.add(a);
             }
+        }
+        Marker[] moved = translateMarkers(D, moving);
+        for (int i = 0; i < moving.size(); i++) {
+            moving.get(i).moveTo(moved[2 * i], moved[2 * i + 1], run_time);
+        }
 
-            try {
-                // DEBUG: check out that all these follows seem to work as intended
-                String server_would_see = pending_changes.applyToText(sent_changes.applyToText(server_text));
-                if (!server_would_see.equals(client_text)) {
-                    throw new PadException("out of sync, server would see\n'" + server_would_see + "'\nclient sees\n'" + client_text + "'\n");
+        for (Iterator<Map.Entry<String, Avatar>> i = user_avatars.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Avatar> e = i.next();
+            Integer edit = last_edit.get(e.getKey());
+
+            if (edit != null) {
+                // just after the edit in the server text it made, through
+                // the rest of the run, then through our outstanding changes
+                // to where it is in the client text
+                Marker m = Bs[edit].afterThisEdit();
+                for (int j = edit + 1; j < Bs.length; j++) {
+                    m = Bs[j].translateMarker(m);
                 }
-            } catch (ChangesetException e) {
-                System.out.println("old sent changes = " + old_sent_changes.explain());
-                System.out.println("old pending changes = " + old_pending_changes.explain());
-                try {
-                System.out.println("new changeset B=" + new Changeset(cs_str).explain());
-                } catch (ChangesetException e2) {}
-                System.out.println("sent changes = " + sent_changes.explain());
-                System.out.println("pending changes = " + pending_changes.explain());
-                System.out.println();
-                throw new PadException("broke when checking pendings on new CS "+data, e);
+                m = pending_changes.translateMarker(sent_changes.translateMarker(m));
+                e.getValue().adjustForOwnEdit(m, times[edit] - server_time_offset);
             }
+        }
+    }
+
+    // only call when synchronized
+    // returns true if there's something new for the client
+    private boolean handleCollabRoom(Messages.CollabRoom message) throws PadException {
+        boolean has_new = false;
 
-        } else if ("ACCEPT_COMMIT".equals(collab_type)) {
+        if (message instanceof Messages.NewChanges) {
+            ArrayList<Messages.NewChanges> run = new ArrayList<Messages.NewChanges>(1);
+            run.add((Messages.NewChanges) message);
+            has_new = handleNewChanges(run);
 
-            String new_text;
-            long new_rev;
+        } else if (message instanceof Messages.AcceptCommit) {
 
-            try {
-                new_rev = data.getLong("newRev");
-            } catch (JSONException e) {
-                throw new PadException("failed getting ACCEPT_COMMIT's newRev", e);
-            }
+            Rope new_text;
+            long new_rev = ((Messages.AcceptCommit) message).new_rev;
 
             try {
                 new_text = sent_changes.applyToText(server_text);
@@ -599,49 +1213,54 @@ public class Pad {
             }
 
             sent_changes = Changeset.identity(server_text.length());
+            commit_scheduler.acked(System.nanoTime());
 
-            // the acceptance should not introduce any new data to the client
-            //has_new = true;
-        } else if ("USER_NEWINFO".equals(collab_type)) {
-            // a user joins or updates status
+            if (journal != null) {
+                try {
+                    journal.accepted(new_rev);
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+            journalSnapshotIfDue();
 
-            JSONObject user_info;
-            String user_id;
+            final long acked_rev = new_rev;
+            queueEvent(new Event() {
+                void fire(Pad pad, PadListener l) {
+                    l.acked(pad, acked_rev);
+                }
+            });
 
-            try {
-                user_info = data.getJSONObject("userInfo");
-                user_id = user_info.getString("userId");
-            } catch (JSONException e) {
-                throw new PadException("bad USER_NEWINFO", e);
-            }
+            // the acceptance should not introduce any new data to the client
+            //has_new = true;
+        } else if (message instanceof Messages.UserNewInfo) {
+            // a user joins or updates status
+            Messages.UserNewInfo info = (Messages.UserNewInfo) message;
 
-            Avatar avatar = user_avatars.get(user_id);
+            Avatar avatar = user_avatars.get(info.user_id);
+            boolean joined = (avatar == null);
 
-            if (avatar == null) {
-                avatar = new Avatar(user_id);
-                user_avatars.put(user_id, avatar);
+            if (joined) {
+                avatar = new Avatar(info.user_id);
+                user_avatars.put(info.user_id, avatar);
             }
 
             try {
-                String user_name;
                 String color_id;
-                String user_agent;
-                String address;
 
-                if (user_info.isNull("name")) {
-                    avatar.setUserName(null);
-                } else {
-                    avatar.setUserName(user_info.getString("name"));
-                }
+                avatar.setUserName(info.name);
 
-                int color_num = user_info.optInt("colorId", -1);
-                if (color_num != -1) {
-                    color_id = client_vars.getJSONArray("colorPalette").optString(color_num);
+                if (info.color_num != -1 && client_vars != null) {
+                    color_id = client_vars.getJSONArray("colorPalette").optString(info.color_num);
                 } else {
-                    color_id = user_info.optString("colorId");
+                    color_id = info.color_id;
                 }
                 avatar.setColor(color_id);
 
+                if (joined) {
+                    queueUserJoined(avatar);
+                }
+
                 // don't consider cursor stuff "new"
                 //has_new = true;
 
@@ -649,36 +1268,31 @@ public class Pad {
                 throw new PadException("bad/missing data in USER_NEWINFO", e);
             }
 
-        } else if ("USER_LEAVE".equals(collab_type)) {
+        } else if (message instanceof Messages.UserLeave) {
             // a user leaves
-            JSONObject user_info;
-            String user_id;
-
-            try {
-                user_info = data.getJSONObject("userInfo");
-                user_id = user_info.getString("userId");
-            } catch (JSONException e) {
-                throw new PadException("bad/missing userId in USER_LEAVE", e);
-            }
+            String user_id = ((Messages.UserLeave) message).user_id;
 
             if (user_avatars.remove(user_id) != null) {
                 // don't consider cursor stuff "new"
                 //has_new = true;
+
+                final String left_id = user_id;
+                queueEvent(new Event() {
+                    void fire(Pad pad, PadListener l) {
+                        l.userLeft(pad, left_id);
+                    }
+                });
             }
 
-        } else if ("CHAT_MESSAGE".equals(collab_type)) {
+        } else if (message instanceof Messages.ChatMessage) {
             // message from a user
-            try {
-                if (handleChat(data.getString("text"), data.getString("userId"), data.optString("userName", null), data.getLong("time"))) {
-                    // don't consider cursor stuff "new"
-                    //has_new = true;
-                }
-            } catch (JSONException e) {
-                throw new PadException("bad/missing data in CHAT_MESSAGE", e);
+            if (handleChat((Messages.ChatMessage) message)) {
+                // don't consider cursor stuff "new"
+                //has_new = true;
             }
 
         } else {
-            System.out.println("unsupported COLLABROOM message type = " + collab_type);
+            System.out.println("unsupported COLLABROOM message type = " + message.type);
         }
 
         return has_new;
@@ -686,70 +1300,149 @@ public class Pad {
 
     // only call when synchronized
     // return true if we've processed this message
-    private boolean handleChat(String text, String user_id, String user_name, long time) {
-        Matcher m = cursor_chat_regex.matcher(text);
-        if (m.find()) {
-            String start_pos_str = m.group(1);
-            String end_pos_str = m.group(3);
+    private boolean handleChat(Messages.ChatMessage chat) {
+        if (!chat.isCursor()) {
+            System.out.println("ignoring chat message \""+chat.text+"\" from "+chat.user_id);
+            return false;
+        }
 
-            int start_pos = Integer.parseInt(start_pos_str);
-            int end_pos = start_pos-1;
+        int start_pos = chat.cursor_start;
+        int end_pos = chat.cursor_end;
 
-            System.out.println("" + start_pos_str + "," + end_pos_str);
+        Avatar av = user_avatars.get(chat.user_id);
 
-            if (end_pos_str != null) {
-                end_pos = Integer.parseInt(end_pos_str);
-            }
+        if (av == null) {
+            av = new Avatar(chat.user_id);
+            user_avatars.put(chat.user_id, av);
+        }
 
-            Avatar av = user_avatars.get(user_id);
+        if (chat.user_name != null) {
+            av.setUserName(chat.user_name);
+        }
 
-            if (av == null) {
-                av = new Avatar(user_id);
-                user_avatars.put(user_id, av);
-            }
+        if (start_pos > client_text.length()) {
+            start_pos = client_text.length();
+        }
+        if (end_pos > client_text.length()) {
+            end_pos = client_text.length();
+        }
+        av.setPos(start_pos, end_pos, chat.time - server_time_offset);
 
-            if (user_name != null) {
-                av.setUserName(user_name);
+        final Avatar moved = new Avatar(av);
+        queueEvent(new Event() {
+            void fire(Pad pad, PadListener l) {
+                l.cursorMoved(pad, moved);
             }
+        });
 
-            if (start_pos > client_text.length()) {
-                start_pos = client_text.length();
-            }
-            if (end_pos > client_text.length()) {
-                end_pos = client_text.length();
-            }
-            av.setPos(start_pos, end_pos, time - server_time_offset);
+        return true;
+    }
 
-            return true;
+    // only call when synchronized
+    // the cursors held back by updateInternal(), in the order their users
+    // first moved
+    private void handlePendingCursors() {
+        if (pending_cursors.isEmpty()) {
+            return;
+        }
+        for (Messages.ChatMessage chat : pending_cursors.values()) {
+            handleChat(chat);
+        }
+        pending_cursors.clear();
+    }
 
-        } else {
-            System.out.println("ignoring chat message \""+text+"\" from "+user_id);
+    // ********** Marker manipulation
+    // markers are kept by handle, which is the index into
+    // TextState.client_markers; an unregistered marker's handle is null
+    // there until it's handed out again
+    public synchronized int registerMarker(int pos, boolean before, boolean valid) {
+        int handle = markers.add(new Marker(pos, before, valid));
+        publish();
+        return handle;
+    }
 
-            return false;
+    public synchronized void reRegisterMarker(int idx, int pos, boolean before, boolean valid) {
+        markers.set(idx, new Marker(pos, before, valid));
+        publish();
+    }
+
+    public synchronized void unregisterMarker(int idx) {
+        markers.remove(idx);
+        publish();
+    }
+
+    // as above for many at once, publishing once
+    public synchronized int[] registerMarkers(Marker[] ms) {
+        int[] handles = new int[ms.length];
+        for (int i = 0; i < ms.length; i++) {
+            handles[i] = markers.add(ms[i]);
         }
+        publish();
+        return handles;
     }
 
-    // ********** Marker manipulation
-    // 
-    public int registerMarker(int pos, boolean before, boolean valid) {
-        synchronized(markers) {
-            markers.add(new Marker(pos, before, valid));
-            return markers.size()-1;
+    public synchronized void unregisterMarkers(int[] idxs) {
+        for (int idx : idxs) {
+            markers.remove(idx);
         }
+        publish();
     }
 
-    public void reRegisterMarker(int idx, int pos, boolean before, boolean valid) {
-        synchronized(markers) {
-            markers.set(idx, new Marker(pos, before, valid));
+    // ********** Tracked ranges
+    // ranges of the client text, for comments, highlights and the like,
+    // which move with the text as markers do; by handle, as markers are,
+    // though not in TextState: there can be a great many, see RangeTree
+    // positions are in the client text as of the call, which (as the pad is
+    // locked) is what getState() has at that moment
+
+    // [start, end), returns its handle
+    public synchronized int addRange(int start, int end) throws PadException {
+        if (start < 0 || end > client_text.length() || start > end) {
+            throw new PadException("range [" + start + ", " + end + ") isn't in the text, length " + client_text.length());
         }
+        return ranges.add(start, end);
+    }
+
+    public synchronized void removeRange(int handle) {
+        ranges.remove(handle);
+    }
+
+    public synchronized Range getRange(int handle) {
+        return ranges.get(handle);
+    }
+
+    // the ranges overlapping [from, to) (a viewport, say), and the empty ones
+    // in it, in order of where they start
+    public synchronized Range[] getRanges(int from, int to) {
+        ArrayList<Range> found = ranges.overlapping(from, to);
+        return found.toArray(new Range[found.size()]);
     }
 
+    public synchronized int getRangeCount() {
+        return ranges.count();
+    }
+
+    // only call when synchronized
+    // the registered markers and the tracked ranges through cs
     private void translateMarkers(Changeset cs) {
-        synchronized(markers) {
-            for (int i = 0; i < markers.size(); i++) {
-                markers.set(i, cs.translateMarker(markers.get(i)));
-            }
+        markers.translate(cs);
+        ranges.translate(cs);
+    }
+
+    // only call when synchronized
+    // as above, and the selections of avatars, a sweep over its ops for
+    // each; returns where each avatar's start and end went, in pairs, for
+    // the caller to set
+    private Marker[] translateMarkers(Changeset cs, ArrayList<Avatar> avatars) {
+        translateMarkers(cs);
+
+        Marker[] moved = new Marker[2 * avatars.size()];
+        for (int i = 0; i < avatars.size(); i++) {
+            moved[2 * i] = avatars.get(i).getStartMarker();
+            moved[2 * i + 1] = avatars.get(i).getEndMarker();
         }
+        cs.translateMarkers(moved);
+        return moved;
     }
 
     // ********* Change interface
@@ -767,7 +1460,7 @@ public class Pad {
     }
 
     // set "follow" true to have the marker move to the end of the inserted text
-    public void insertAtMarker(int marker_idx, String new_s, boolean follow) throws PadException {
+    public synchronized void insertAtMarker(int marker_idx, String new_s, boolean follow) throws PadException {
         Marker marker = markers.get(marker_idx);
 
         int marker_old_pos = marker.pos;
@@ -796,12 +1489,11 @@ public class Pad {
             marker_new_pos = marker_old_pos;
         }
 
-        synchronized(markers) {
-            markers.set(marker_idx, new Marker(marker_new_pos, marker.before, true));
-        }
+        markers.set(marker_idx, new Marker(marker_new_pos, marker.before, true));
+        publish();
     }
 
-    public void replaceBetweenMarkers(int start_marker_idx, int end_marker_idx, String new_s) throws PadException {
+    public synchronized void replaceBetweenMarkers(int start_marker_idx, int end_marker_idx, String new_s) throws PadException {
         Marker start_marker = markers.get(start_marker_idx);
         Marker end_marker = markers.get(end_marker_idx);
 
@@ -839,13 +1531,12 @@ public class Pad {
         }
 
         // update markers (removing text generally invalidates markers)
-        synchronized(markers) {
-            markers.set(start_marker_idx, new Marker(start_pos - start_pos_offset, start_marker.before, true));
-            markers.set(end_marker_idx, new Marker(start_pos + new_s.length() - end_pos_offset, end_marker.before, true));
-        }
+        markers.set(start_marker_idx, new Marker(start_pos - start_pos_offset, start_marker.before, true));
+        markers.set(end_marker_idx, new Marker(start_pos + new_s.length() - end_pos_offset, end_marker.before, true));
+        publish();
     }
 
-    public void prependText(String new_s) throws PadException {
+    public synchronized void prependText(String new_s) throws PadException {
         try {
             makeChangeInternal(Changeset.simpleEdit(client_text, 0, 0, new_s));
         } catch (ChangesetException e) {
@@ -854,21 +1545,19 @@ public class Pad {
     }
 
     // returns new marker index i, i and i+1 are markers for the appended text (i is a 'before' marker, i+1 is after)
-    public int prependTextAndMark(String new_s) throws PadException {
+    public synchronized int prependTextAndMark(String new_s) throws PadException {
         try {
             makeChangeInternal(Changeset.simpleEdit(client_text, 0, 0, new_s));
         } catch (ChangesetException e) {
             throw new PadException("error assembling or applying prepend changeset", e);
         }
 
-        synchronized (markers) {
-            markers.add(new Marker(0, true, true));
-            markers.add(new Marker(new_s.length()-1, false, true));
-            return markers.size()-2;
-        }
+        int handle = markers.addPair(new Marker(0, true, true), new Marker(new_s.length()-1, false, true));
+        publish();
+        return handle;
     }
 
-    public void appendText(String new_s) throws PadException {
+    public synchronized void appendText(String new_s) throws PadException {
         int pos = client_text.length()-1;
         try {
             makeChangeInternal(Changeset.simpleEdit(client_text, pos, 0, new_s));
@@ -878,7 +1567,7 @@ public class Pad {
     }
 
     // returns new marker index i, i and i+1 are markers for the appended text (i is a 'before' marker, i+1 is after)
-    public int appendTextAndMark(String new_s) throws PadException {
+    public synchronized int appendTextAndMark(String new_s) throws PadException {
         int pos = client_text.length()-1;
         try {
             makeChangeInternal(Changeset.simpleEdit(client_text, pos, 0, new_s));
@@ -886,63 +1575,555 @@ public class Pad {
             throw new PadException("error assembling or applying append changeset", e);
         }
 
-        synchronized (markers) {
-            markers.add(new Marker(pos, true, true));
-            markers.add(new Marker(pos+new_s.length()-1, false, true));
-            return markers.size()-2;
-        }
+        int handle = markers.addPair(new Marker(pos, true, true), new Marker(pos+new_s.length()-1, false, true));
+        publish();
+        return handle;
     }
 
+    // copies, as of the same moment as getState()
     public Avatar[] getCursors() {
-        synchronized (user_avatars) {
-            Avatar[] avatars = new Avatar[user_avatars.size()];
-            return user_avatars.values().toArray(avatars);
-        }
+        return snapshot.avatars.clone();
     }
 
+    // the others only see the latest of a quick run of moves, see
+    // setCursorBroadcaster()
     public synchronized void broadcastCursor(int start_pos, int end_pos) throws PadException {
         if (connection == null) {
             return;
         }
 
-        JSONObject chat_message;
-        final StringBuilder text_sb = new StringBuilder("!cursor!");
+        if (!cursor_broadcaster.moved(start_pos, end_pos)) {
+            return;
+        }
+
+        sendCursorIfDue();
+    }
+
+    // only call when synchronized
+    // what the broadcaster held back goes once it's time; until then a
+    // timer will wake the pad for update() to call this again
+    private void sendCursorIfDue() {
+        if (!cursor_broadcaster.hasPending()) {
+            return;
+        }
+
+        long delay = cursor_broadcaster.delay(System.nanoTime());
+        if (delay > 0) {
+            // one already waiting sends whatever's latest
+            if (cursor_timer == null || cursor_timer.isDone()) {
+                cursor_timer = CommitScheduler.timer().schedule(cursor_wake, delay, TimeUnit.NANOSECONDS);
+            }
+            return;
+        }
+
+        sendCursor();
+    }
+
+    // only call when synchronized
+    private void sendCursor() {
+        if (!cursor_broadcaster.hasPending()) {
+            return;
+        }
+        if (connection == null) {
+            cursor_broadcaster.dropped();
+            return;
+        }
+
+        int start_pos = cursor_broadcaster.pendingStart();
+        int end_pos = cursor_broadcaster.pendingEnd();
+
+        StringBuilder text_sb = new StringBuilder(Messages.CURSOR_PREFIX);
         text_sb.append(start_pos);
         if (start_pos != end_pos ) {
             text_sb.append('-');
             text_sb.append(end_pos);
         }
 
-        try {
-            chat_message = new JSONObject() {{
-                put("component", "pad");
-                put("type", "COLLABROOM");
-                put("data", new JSONObject() {{
-                    put("type", "CHAT_MESSAGE");
-                    put("text", text_sb.toString());
-                }});
-            }};
-        } catch (JSONException e) {
-            throw new PadException("failed building CHAT_MESSAGE JSON", e);
+        connection.send(Messages.chatMessage(send_buf, text_sb.toString()));
+        cursor_broadcaster.sent(System.nanoTime());
+    }
+
+    // doesn't lock, the timer is shared
+    private final Runnable cursor_wake = new Runnable() {
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    // ********* private changeset application
+
+    // only call when synchronized
+    // called at the end of anything that changes what the read accessors see
+    private void publish() {
+        Avatar[] avatars = new Avatar[user_avatars.size()];
+        int i = 0;
+        for (Avatar a : user_avatars.values()) {
+            avatars[i++] = new Avatar(a);
         }
 
-        connection.send(chat_message);
+        boolean awaiting_ack = (sent_changes != null && !sent_changes.isIdentity());
+
+        // local edits not folded into pending_changes yet count as pending
+        // (it's possible they cancel out)
+        boolean send_pending = local_edits.size() > 1 || (pending_changes != null && !pending_changes.isIdentity());
+
+        snapshot = new Snapshot(server_text, server_rev, client_text, client_rev,
+            markers.snapshot(), avatars, awaiting_ack, send_pending);
     }
 
-    // ********* private changeset application
+    // only call when synchronized
+    // applying our outstanding changes to the server text should give the
+    // client text; the Ropes share structure so the applies only cost the
+    // size of the changes, and hashes are only computed for the nodes that
+    // changed, but a full comparison is O(n) so it can be sampled instead
+    // revs is how many revisions this is checking
+    private void verifyInSync(int revs) throws ChangesetException, PadException {
+        boolean full;
+
+        switch (verify_mode) {
+        case OFF:
+            return;
+        case SAMPLED:
+            revs_since_verify += revs;
+            if (revs_since_verify < verify_interval) {
+                return;
+            }
+            revs_since_verify = 0;
+            full = true;
+            break;
+        case HASH:
+        default:
+            full = false;
+            break;
+        }
+
+        Rope server_would_see = pending_changes.applyToText(sent_changes.applyToText(server_text));
+        boolean in_sync = full ? server_would_see.equals(client_text)
+            : (server_would_see.length() == client_text.length() && server_would_see.fingerprint() == client_text.fingerprint());
+        if (!in_sync) {
+            throw new PadException("out of sync, server would see\n'" + server_would_see + "'\nclient sees\n'" + client_text + "'\n");
+        }
+    }
+
+    // only call when synchronized
+    // brings pending_changes up to date with the local edits, composing them
+    // all in one balanced pass rather than one compose per edit
+    private void foldLocalEdits() throws PadException {
+        if (local_edits.size() > 1) {
+            try {
+                pending_changes = local_edits.result();
+            } catch (ChangesetException e) {
+                throw new PadException("error composing local edits", e);
+            }
+        }
+        local_edits.clear();
+    }
 
     // only call when synchronized!
     private void makeChangeInternal(Changeset changeset) throws ChangesetException {
-        pending_changes = Changeset.compose(pending_changes, changeset);
+        if (local_edits.isEmpty()) {
+            local_edits.add(pending_changes);
+        }
+        local_edits.add(changeset);
 
         client_text = changeset.applyToText(client_text);
         client_rev = -1;
-        translateMarkers(changeset);
 
-        for (Iterator<Avatar> i = user_avatars.values().iterator(); i.hasNext(); ) {
-            Avatar a = i.next();
-            // cheating the time here to force it through
-            a.adjustForChangeset(user_id, changeset, a.getTime());
+        // our own avatar goes after the edit, everyone else's go through it
+        // with the markers; cheating the times here to force it through
+        ArrayList<Avatar> moving = new ArrayList<Avatar>(user_avatars.size());
+        for (Avatar a : user_avatars.values()) {
+            if (a.getUserId().equals(user_id)) {
+                a.adjustForOwnEdit(changeset.afterThisEdit(), a.getTime());
+            } else {
+                moving.add(a);
+            }
+        }
+        Marker[] moved = translateMarkers(changeset, moving);
+        for (int i = 0; i < moving.size(); i++) {
+            moving.get(i).moveTo(moved[2 * i], moved[2 * i + 1], moving.get(i).getTime());
+        }
+
+        commit_scheduler.edited(System.nanoTime());
+
+        if (journal != null) {
+            try {
+                journal.localEdit(changeset);
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+        journalSnapshotIfDue();
+
+        publish();
+        wakeUp();
+    }
+
+    // ********* journal
+
+    // keep our state in journal, picking up from what's in it if there's
+    // anything: the server text and revision, and local changes whether
+    // they'd been sent or not, so a restarted process has its unacknowledged
+    // edits back without waiting on the server
+    // must be done before connecting; returns true if there was something
+    // to pick up
+    public synchronized boolean setJournal(PadJournal journal) throws PadException {
+        if (connection != null) {
+            throw new IllegalStateException("journal must be set before connecting");
+        }
+
+        PadJournal.State state = journal.recovered();
+        this.journal = journal;
+
+        if (state != null) {
+            try {
+                server_text = state.server_text;
+                server_rev = state.server_rev;
+                // so that our own revisions are recognised catching up
+                user_id = state.user_id;
+                // which there's no CLIENT_VARS to tell us then
+                read_only = state.read_only;
+                sent_changes = state.sent_changes;
+                pending_changes = state.pending_changes;
+                local_edits.clear();
+                client_text = pending_changes.applyToText(sent_changes.applyToText(server_text));
+                client_rev = (sent_changes.isIdentity() && pending_changes.isIdentity()) ? server_rev : -1;
+            } catch (ChangesetException e) {
+                throw new PadException("bad changes in journal", e);
+            } finally {
+                publish();
+            }
+        }
+
+        if (state == null) {
+            // something to replay onto next time
+            journalSnapshot();
+        }
+        return state != null;
+    }
+
+    // as above with a journal in dir, with the default settings
+    public boolean setJournal(File dir) throws IOException, PadException {
+        return setJournal(new PadJournal(dir));
+    }
+
+    public PadJournal getJournal() {
+        return journal;
+    }
+
+    // only call when synchronized
+    private void journalSnapshot() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            Changeset pending = (local_edits.size() > 1) ? local_edits.result() : pending_changes;
+            journal.snapshot(server_rev, server_text, sent_changes, pending, user_id, read_only);
+        } catch (ChangesetException e) {
+            journalFailed(new IOException("error composing local edits for the journal", e));
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    // only call when synchronized
+    private void journalSnapshotIfDue() {
+        if (journal != null && journal.snapshotDue()) {
+            journalSnapshot();
+        }
+    }
+
+    // only call when synchronized
+    // carry on without it, as if we'd never had one
+    private void journalFailed(IOException e) {
+        if (logger != null) {
+            logger.log(Level.SEVERE, "journal failed, no longer journaling", e);
+        } else {
+            e.printStackTrace();
+        }
+
+        try {
+            journal.close();
+        } catch (IOException ce) {
+            // it's going anyway
+        }
+        journal = null;
+    }
+
+    // ********* commit timer
+
+    // only call when synchronized
+    // wake the pad in delay_ns for update() to try commitChanges() again,
+    // unless it's already due sooner
+    private void scheduleCommit(long delay_ns) {
+        if (commit_timer != null && !commit_timer.isDone()) {
+            if (commit_timer.getDelay(TimeUnit.NANOSECONDS) <= delay_ns) {
+                return;
+            }
+            commit_timer.cancel(false);
+        }
+        commit_timer = CommitScheduler.timer().schedule(commit_wake, delay_ns, TimeUnit.NANOSECONDS);
+    }
+
+    // doesn't lock, the timer is shared; the commit, and anything it
+    // throws, happens in update(), whether that's push mode's, awaitUpdate()
+    // or the caller's own
+    private final Runnable commit_wake = new Runnable() {
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    // ********* blocking updates
+
+    // instead of polling update() in a loop: waits until a message comes
+    // in, a local change is made or the connection drops, or for timeout_ms,
+    // then does update(true, true); returns what that did, or false if it
+    // timed out
+    // opening the first connection is up to connect(), but after one drops
+    // this connects again by itself as push mode does, see reconnectIfDue()
+    // the wait doesn't hold the pad's monitor, so it doesn't pin the carrier
+    // of a virtual thread
+    public boolean awaitUpdate(long timeout_ms) throws PadException, InterruptedException {
+        wake_lock.lock();
+        try {
+            long left = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+            while (!woken) {
+                if (left <= 0) {
+                    return false;
+                }
+                left = wake.awaitNanos(left);
+            }
+            woken = false;
+        } finally {
+            wake_lock.unlock();
+        }
+
+        if (connection == null) {
+            reconnectIfDue();
+            fireEvents();
+            return false;
+        }
+        return update(true, true);
+    }
+
+    // ********* listeners and push mode
+
+    public void addListener(PadListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PadListener listener) {
+        listeners.remove(listener);
+    }
+
+    // push mode: instead of the caller polling update(), the pad runs
+    // update(true, true) on executor itself whenever a message comes in or a
+    // local change is made, and the listeners hear about it there
+    // updates for one pad never overlap, so executor can be shared between
+    // many pads
+    public synchronized void startPush(Executor executor) {
+        stopPush();
+        push_executor = executor;
+        // catch up on anything that came in while polling
+        wakeUp();
+    }
+
+    // as above, on a thread of the pad's own
+    public synchronized void startPush() {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "epl push " + pad_id);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        startPush(executor);
+        own_push_executor = executor;
+    }
+
+    // back to polling, an update already on the way may still happen
+    public synchronized void stopPush() {
+        push_executor = null;
+        if (own_push_executor != null) {
+            own_push_executor.shutdown();
+            own_push_executor = null;
+        }
+    }
+
+    public boolean isPushing() {
+        return push_executor != null;
+    }
+
+    private final Runnable push_update = new Runnable() {
+        public void run() {
+            // cleared first, anything arriving from here on gets another go
+            push_scheduled.set(false);
+            if (push_executor == null) {
+                return;
+            }
+
+            // update() would open a connection if there isn't one, but in
+            // push mode that waits for its turn
+            if (connection == null) {
+                reconnectIfDue();
+                fireEvents();
+                return;
+            }
+
+            try {
+                update(true, true);
+            } catch (PadException e) {
+                failPush(e);
+            }
+        }
+    };
+
+    // processing stopped with e
+    private void failPush(PadException e) {
+        Logger l = logger;
+        if (l != null) {
+            l.log(Level.SEVERE, "pad " + pad_id + " stopped", e);
+        }
+        stopPush();
+        fireFailed(e);
+    }
+
+    // only call when synchronized
+    private void queueConnected() {
+        reconnect_attempts = 0;
+        queueEvent(new Event() {
+            void fire(Pad pad, PadListener l) {
+                l.connected(pad);
+            }
+        });
+    }
+
+    // after the connection dropped, connect() again if it's time: straight
+    // away the first time, then backing off between tries; a timer wakes
+    // the pad for the next try, so this only needs calling on waking
+    // picking up where we were by catching up on what was missed if it
+    // can, see sendClientReady()
+    private void reconnectIfDue() {
+        synchronized (this) {
+            if (!dropped || closing || connection != null) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (reconnect_attempts > 0 && now - next_reconnect_ns < 0) {
+                return;
+            }
+
+            long backoff = RECONNECT_MIN_MS << Math.min(reconnect_attempts, 16);
+            backoff = Math.min(backoff, RECONNECT_MAX_MS);
+            backoff = TimeUnit.MILLISECONDS.toNanos(backoff / 2 + (long) (Math.random() * backoff));
+            reconnect_attempts++;
+            next_reconnect_ns = now + backoff;
+            CommitScheduler.timer().schedule(reconnect_wake, backoff, TimeUnit.NANOSECONDS);
+
+            // it's the backoff that keeps us from trying too hard
+            failed_connecting = false;
+        }
+
+        // a second call meanwhile finds it's not due yet
+        try {
+            connect(true);
+        } catch (IOException e) {
+            reconnectFailed(e);
+        } catch (PadException e) {
+            reconnectFailed(e);
+        }
+    }
+
+    // logs without holding our lock, handlers do IO
+    private void reconnectFailed(Exception e) {
+        Logger l = logger;
+        if (l != null) {
+            l.log(Level.WARNING, "pad " + pad_id + " couldn't reconnect, try " + reconnect_attempts, e);
+        }
+        synchronized (this) {
+            // in case it got as far as making one
+            PadConnection c = connection;
+            if (c != null && !c.isConnecting() && !c.isConnected()) {
+                connection = null;
+            }
+        }
+    }
+
+    // doesn't lock, the timer is shared
+    private final Runnable reconnect_wake = new Runnable() {
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    // tell the listeners processing stopped, for whoever was driving update()
+    void fireFailed(PadException e) {
+        for (PadListener l : listeners) {
+            l.failed(this, e);
+        }
+    }
+
+    // there's something for update() to do: in push mode make sure there's
+    // an update on the way, otherwise wake awaitUpdate()
+    // doesn't lock, it's called from the network thread as well
+    private void wakeUp() {
+        wake_lock.lock();
+        try {
+            woken = true;
+            wake.signalAll();
+        } finally {
+            wake_lock.unlock();
+        }
+
+        Executor executor = push_executor;
+        if (executor != null && push_scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(push_update);
+            } catch (RejectedExecutionException e) {
+                // shut down under us by stopPush()
+                push_scheduled.set(false);
+            }
+        }
+    }
+
+    // only call when synchronized
+    private void queueEvent(Event event) {
+        if (!listeners.isEmpty()) {
+            events.add(event);
+        }
+    }
+
+    // only call when synchronized
+    private void queueUserJoined(Avatar avatar) {
+        final Avatar joined = new Avatar(avatar);
+        queueEvent(new Event() {
+            void fire(Pad pad, PadListener l) {
+                l.userJoined(pad, joined);
+            }
+        });
+    }
+
+    // don't call when synchronized, listeners may want to call back in from
+    // another thread
+    private void fireEvents() {
+        synchronized (fire_lock) {
+            Event[] to_fire;
+
+            synchronized (this) {
+                if (events.isEmpty()) {
+                    return;
+                }
+                to_fire = events.toArray(new Event[events.size()]);
+                events.clear();
+            }
+
+            for (Event e : to_fire) {
+                for (PadListener l : listeners) {
+                    e.fire(this, l);
+                }
+            }
         }
     }
 }
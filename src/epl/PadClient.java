@@ -0,0 +1,264 @@
+package epl;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// hosts many Pads on the same Etherpad Lite server, for bots watching
+// thousands of them
+// the pads share what a standalone Pad has its own of: the session token
+// (one HTTP fetch instead of one per pad), the author token, the logger and
+// its handler to the server's /jserror, and the threads that run them, as
+// they're all in push mode on a shared pool (see Pad.startPush())
+// each still has its own socket, Etherpad ties a socket to the one pad it
+// sent CLIENT_READY for
+// pads also get a smaller inbox by default, the standalone default is sized
+// for one busy pad rather than thousands of mostly quiet ones
+// with VIRTUAL_THREADS, rather than sharing a pool, each pad gets a virtual
+// thread of its own (JDK 21 on) looping on Pad.awaitUpdate(), blocked until
+// there's something to do, and tens of thousands of them are no trouble;
+// without virtual threads it falls back to the pool
+// either way a pad whose connection drops connects again by itself, with
+// the shared session token, backing off while the server's not there; the
+// server may have expired the token, so a drop also makes the next pad to
+// connect fetch a new one
+
+public class PadClient {
+    static final int DEFAULT_INBOX_CAPACITY = 1 << 8;
+
+    // for threads, a virtual thread per pad where there are such things
+    public static final int VIRTUAL_THREADS = 0;
+
+    // how long a pad's thread blocks at a time when there's nothing to do,
+    // close() interrupts it so this is only a backstop
+    static final long LOOP_WAIT_MS = 60 * 1000;
+
+    private final URL url;
+    private final String client_id;
+    private final String token;
+
+    // not a monitor: pads on virtual threads wait on it while one fetches
+    // the token, which would pin their carriers
+    private final ReentrantLock token_lock = new ReentrantLock();
+    private String session_token;
+
+    private final Logger logger;
+    private Handler log_handler = null;
+    // what log_handler sends on to the server, to change its session
+    private Pad.PadLogHandler log_target = null;
+
+    // either pads are pushed on a pool, or each loops on a thread of its own
+    private final ExecutorService executor;
+    private final ThreadFactory loop_threads;
+    private final HashMap<Pad, Thread> loops = new HashMap<Pad, Thread>();
+
+    private final HashMap<String, Pad> pads = new HashMap<String, Pad>();
+
+    private int inbox_capacity = DEFAULT_INBOX_CAPACITY;
+    private Inbox.Policy inbox_policy = Inbox.Policy.BLOCK;
+
+    public PadClient(
+        URL url,
+        String client_id,       // can be ""
+        String token,           // can be null, one is made up for all the pads
+        String session_token,   // can be null
+        int threads             // to run the pads on, or VIRTUAL_THREADS
+        ) {
+        this.url = url;
+        this.client_id = client_id;
+        this.token = (token != null) ? token : "t." + Pad.randomString();
+        this.session_token = session_token;
+
+        logger = Logger.getAnonymousLogger();
+
+        loop_threads = (threads == VIRTUAL_THREADS) ? VirtualThreads.factory("epl pad ") : null;
+        if (loop_threads != null) {
+            executor = null;
+            return;
+        }
+
+        if (threads == VIRTUAL_THREADS) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        final AtomicInteger thread_count = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "epl client " + thread_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // whether each pad has a virtual thread, rather than sharing a pool
+    public boolean isVirtual() {
+        return loop_threads != null;
+    }
+
+    // shorthand for anonymous pads, a thread per core
+    public PadClient(URL url) {
+        this(url, "", null, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    // for pads made after this
+    public synchronized void setInbox(int capacity, Inbox.Policy policy) {
+        inbox_capacity = capacity;
+        inbox_policy = policy;
+    }
+
+    // a new pad, running on our threads but not yet connected, so listeners
+    // can be added before anything happens
+    public synchronized Pad newPad(String pad_id) throws PadException {
+        if (pads.containsKey(pad_id)) {
+            throw new PadException("already have pad " + pad_id);
+        }
+
+        // the session token comes from sessionToken() when it connects
+        Pad pad = new Pad(url, client_id, token, pad_id, null);
+        pad.setInbox(inbox_capacity, inbox_policy);
+        pad.setClient(this, logger);
+        if (executor != null) {
+            pad.startPush(executor);
+        } else {
+            startLoop(pad, pad_id);
+        }
+
+        pads.put(pad_id, pad);
+        return pad;
+    }
+
+    // only call when synchronized
+    private void startLoop(final Pad pad, final String pad_id) {
+        Thread t = loop_threads.newThread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        pad.awaitUpdate(LOOP_WAIT_MS);
+                    }
+                } catch (InterruptedException e) {
+                    // closed
+                } catch (PadException e) {
+                    logger.log(Level.SEVERE, "pad " + pad_id + " stopped", e);
+                    pad.fireFailed(e);
+                }
+            }
+        });
+        loops.put(pad, t);
+        t.start();
+    }
+
+    // newPad() and connect it
+    public Pad open(String pad_id) throws IOException, PadException {
+        Pad pad = newPad(pad_id);
+        // not holding our lock, the pad takes it to get the session token
+        pad.connect();
+        return pad;
+    }
+
+    public synchronized Pad getPad(String pad_id) {
+        return pads.get(pad_id);
+    }
+
+    public synchronized int size() {
+        return pads.size();
+    }
+
+    public void close(Pad pad) {
+        Thread loop;
+        synchronized (this) {
+            pads.values().remove(pad);
+            loop = loops.remove(pad);
+        }
+        pad.disconnect();
+        if (loop != null) {
+            loop.interrupt();
+        }
+    }
+
+    // disconnects all the pads and stops the threads
+    public void close() {
+        Pad[] to_close;
+        Thread[] to_stop;
+        synchronized (this) {
+            to_close = pads.values().toArray(new Pad[pads.size()]);
+            pads.clear();
+            to_stop = loops.values().toArray(new Thread[loops.size()]);
+            loops.clear();
+        }
+
+        for (Pad pad : to_close) {
+            pad.disconnect();
+        }
+        for (Thread t : to_stop) {
+            t.interrupt();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        // the socket's logger is static, see Pad.disconnect()
+        token_lock.lock();
+        try {
+            if (log_handler != null) {
+                PadConnection.removeLogHandler(log_handler);
+            }
+        } finally {
+            token_lock.unlock();
+        }
+    }
+
+    // these are made the first time a pad needs them, then shared; pads ask
+    // without holding their own lock, and this takes none of the others
+
+    String sessionToken() throws IOException, PadException {
+        token_lock.lock();
+        try {
+            if (session_token == null) {
+                session_token = PadConnection.getSessionToken(url);
+                if (log_target != null) {
+                    log_target.sid = session_token;
+                }
+            }
+            return session_token;
+        } finally {
+            token_lock.unlock();
+        }
+    }
+
+    // a pad's connection with stale dropped or was turned away, the next
+    // pad to connect fetches another; however many pads drop with the same
+    // one, that's only the once
+    void sessionTokenExpired(String stale) {
+        token_lock.lock();
+        try {
+            if (stale.equals(session_token)) {
+                session_token = null;
+            }
+        } finally {
+            token_lock.unlock();
+        }
+    }
+
+    Handler logHandler() throws IOException, PadException {
+        token_lock.lock();
+        try {
+            if (log_handler == null) {
+                log_target = Pad.serverLogTarget(url, sessionToken(), null);
+                log_handler = Pad.serverLogHandler(log_target);
+                logger.addHandler(log_handler);
+            }
+            return log_handler;
+        } finally {
+            token_lock.unlock();
+        }
+    }
+}
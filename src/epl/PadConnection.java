@@ -12,6 +12,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import java.util.logging.Handler;
 
@@ -80,6 +81,15 @@ public class PadConnection {
 
     static Logger socket_logger = null;
 
+    // once the pad it's for is done with it
+    static void removeLogHandler(Handler log_handler) {
+        synchronized (PadConnection.class) {
+            if (socket_logger != null) {
+                socket_logger.removeHandler(log_handler);
+            }
+        }
+    }
+
     public void connect(URL url, String session_token) throws IOException, PadException {
         connect(url, session_token, null);
     }
@@ -91,14 +101,18 @@ public class PadConnection {
 
         socket = new SocketIO(url);
 
-        if (socket_logger == null)
-        {
-            socket_logger = SocketIO.getConnectionLogger();
-            socket_logger.setUseParentHandlers(false);
-        }
+        // pads may be connecting from several threads at once
+        synchronized (PadConnection.class) {
+            if (socket_logger == null)
+            {
+                socket_logger = SocketIO.getConnectionLogger();
+                socket_logger.setUseParentHandlers(false);
+            }
 
-        if (log_handler != null) {
-            socket_logger.addHandler(log_handler);
+            // the pads of a PadClient share theirs
+            if (log_handler != null && !Arrays.asList(socket_logger.getHandlers()).contains(log_handler)) {
+                socket_logger.addHandler(log_handler);
+            }
         }
 
         socket.addHeader("Cookie", session_token);
@@ -106,11 +120,7 @@ public class PadConnection {
         socket.connect(new IOCallback() {
             @Override
             public void onMessage(JSONObject json, IOAcknowledge ack) {
-                if (isConnected()) {
-                    pad.onMessage(json);
-                } else {
-                    System.out.println("Ignoring JSON sent while not connected");
-                }
+                received(json);
             }
 
             @Override
@@ -122,32 +132,19 @@ public class PadConnection {
             public void onError(SocketIOException socketIOException) {
                 System.out.println("an Error occurred");
 
-                boolean was_connecting = isConnecting();
-
-                markDisconnected();
-                pad.onDisconnect(was_connecting);
+                closed();
             }
 
             @Override
             public void onDisconnect() {
                 System.out.println("Connection terminated.");
 
-                boolean was_connecting = isConnecting();
-
-                markDisconnected();
-                pad.onDisconnect(was_connecting);
+                closed();
             }
 
             @Override
             public void onConnect() {
-                if (client_connect_state != ClientConnectState.CONNECTING) {
-                    System.out.println("Ignoring onConnect while not connecting!");
-                } else {
-                    System.out.println("Connection established.");
-
-                    client_connect_state = ClientConnectState.CONNECTED;
-                    pad.onConnect();
-                }
+                opened();
             }
 
             @Override
@@ -156,8 +153,50 @@ public class PadConnection {
             }
         });
 
+        startConnecting();
+    }
+
+    // ********** transport events
+    // the socket callbacks land here, so that a different transport (such as
+    // the in-process simulated server in the tests) can drive the same states
+
+    void startConnecting() {
         client_connect_state = ClientConnectState.CONNECTING;
+    }
+
+    void opened() {
+        if (client_connect_state != ClientConnectState.CONNECTING) {
+            System.out.println("Ignoring onConnect while not connecting!");
+        } else {
+            System.out.println("Connection established.");
+
+            client_connect_state = ClientConnectState.CONNECTED;
+            pad.onConnect();
+        }
+    }
+
+    void received(JSONObject json) {
+        if (isConnected()) {
+            pad.onMessage(json);
+        } else {
+            System.out.println("Ignoring JSON sent while not connected");
+        }
+    }
+
+    // a message as text, for transports that don't parse it themselves
+    void received(String text) {
+        if (isConnected()) {
+            pad.onMessage(text);
+        } else {
+            System.out.println("Ignoring JSON sent while not connected");
+        }
+    }
+
+    void closed() {
+        boolean was_connecting = isConnecting();
 
+        markDisconnected();
+        pad.onDisconnect(this, was_connecting);
     }
 
     public void disconnect() {
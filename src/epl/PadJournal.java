@@ -0,0 +1,612 @@
+package epl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// a Pad's state on disk, so a restarted process picks up where it left off,
+// unacknowledged local edits and all, without waiting on the server
+// it's an append-only log of everything that changes the state, in
+// memory-mapped segment files, on top of a snapshot of the whole state:
+//   LOCAL   a local edit, composed onto the pending changes
+//   SENT    the pending changes went out and are now in flight
+//   ACCEPT  the server accepted them, at rev
+//   SERVER  a run of remote changes B up to rev, with what the sent and
+//           pending changes became (rather than transforming them again on
+//           replay, which would have to break ties exactly as Pad did)
+// texts are only in snapshots, recovery replays the log onto them; so is
+// our author id and whether the pad is read-only, which only change with
+// CLIENT_VARS, which snapshots
+// a record written to the mapped segment is in the OS's page cache, so it
+// survives the process dying; forcing it out to the disk itself, to survive
+// the machine going down, is batched to at most every sync_interval ms
+// once the log fills a segment, or has SNAPSHOT_RECORDS records in it, Pad
+// writes a new snapshot (see snapshotDue()) and the old segments are deleted;
+// replaying local edits means composing them, which is what bounds how long
+// recovery takes more than reading them does
+// a record is [int length][int crc32][byte type][fields], a torn one (the
+// crc doesn't match) is the end of the log
+// the pad updates this under its lock
+
+public class PadJournal {
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    static final long DEFAULT_SYNC_INTERVAL = 50;
+    static final int SNAPSHOT_RECORDS = 1 << 12;
+
+    static final byte LOCAL = 1;
+    static final byte SENT = 2;
+    static final byte ACCEPT = 3;
+    static final byte SERVER = 4;
+
+    static final int SNAPSHOT_MAGIC = 0x45504c4a; // "EPLJ"
+    static final int SNAPSHOT_VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the batched syncs run here rather than on CommitScheduler.timer(), as
+    // forcing out a segment can take a while and the pads' timers shouldn't
+    // wait on it; a few threads, so one slow disk write doesn't hold up the
+    // other journals' syncs either
+    static final int SYNC_THREADS = 4;
+    private static ScheduledExecutorService sync_timer = null;
+
+    static synchronized ScheduledExecutorService syncTimer() {
+        if (sync_timer == null) {
+            final AtomicInteger thread_count = new AtomicInteger(0);
+            sync_timer = Executors.newScheduledThreadPool(SYNC_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "epl journal sync " + thread_count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sync_timer;
+    }
+
+    // what Pad picks up from
+    static final class State {
+        final long server_rev;
+        final Rope server_text;
+        final Changeset sent_changes;
+        final Changeset pending_changes;
+        final String user_id;   // null if we never had CLIENT_VARS
+        final boolean read_only;
+
+        State(long server_rev, Rope server_text, Changeset sent_changes, Changeset pending_changes, String user_id,
+                boolean read_only) {
+            this.user_id = user_id;
+            this.read_only = read_only;
+            this.server_rev = server_rev;
+            this.server_text = server_text;
+            this.sent_changes = sent_changes;
+            this.pending_changes = pending_changes;
+        }
+    }
+
+    private final File dir;
+    private final int segment_size;
+    private final long sync_interval_ns;
+
+    private final RandomAccessFile lock_file;
+    private final FileLock lock;
+
+    // the segment being appended to
+    private long segment_seq;
+    private MappedByteBuffer out = null;
+    private boolean snapshot_due = false;
+    private int records_since_snapshot = 0;
+
+    // what was found on opening, null if nothing
+    private State recovered = null;
+
+    private boolean sync_scheduled = false;
+    private boolean closed = false;
+    // why a sync in the background failed, after which nothing more can be
+    // written: the next record throws it, and Pad stops journaling
+    private volatile IOException sync_failure = null;
+
+    // records are put together here before going into the segment
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private final CRC32 crc = new CRC32();
+
+    // metrics
+    private volatile long records = 0;
+    private volatile long bytes = 0;
+    private volatile long snapshots = 0;
+    private volatile long syncs = 0;
+
+    // sync_interval in ms, 0 to force every record out as it's written
+    public PadJournal(File dir, int segment_size, long sync_interval) throws IOException {
+        if (segment_size < 64 || sync_interval < 0) {
+            throw new IllegalArgumentException("bad journal settings " + segment_size + ", " + sync_interval);
+        }
+
+        this.dir = dir;
+        this.segment_size = segment_size;
+        this.sync_interval_ns = TimeUnit.MILLISECONDS.toNanos(sync_interval);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("couldn't make journal directory " + dir);
+        }
+
+        // one process at a time
+        lock_file = new RandomAccessFile(new File(dir, "lock"), "rw");
+        FileLock l = null;
+        try {
+            l = lock_file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held elsewhere in this JVM
+        } catch (IOException e) {
+            lock_file.close();
+            throw e;
+        }
+        if (l == null) {
+            lock_file.close();
+            throw new IOException("journal " + dir + " is in use");
+        }
+        lock = l;
+
+        try {
+            recover();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    public PadJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    // the state as of the last record, or null if there's nothing to go on
+    State recovered() {
+        return recovered;
+    }
+
+    // ********** appending, called by Pad under its lock
+
+    synchronized void localEdit(Changeset cs) throws IOException {
+        begin(LOCAL);
+        putString(cs.toString());
+        append();
+    }
+
+    synchronized void sent() throws IOException {
+        begin(SENT);
+        append();
+    }
+
+    synchronized void accepted(long rev) throws IOException {
+        begin(ACCEPT);
+        scratch.putLong(rev);
+        append();
+    }
+
+    // B is the whole run, sent and pending changes are what they are after
+    synchronized void serverChanges(long rev, Changeset B, Changeset sent_changes, Changeset pending_changes) throws IOException {
+        begin(SERVER);
+        scratch.putLong(rev);
+        putString(B.toString());
+        putString(sent_changes.toString());
+        putString(pending_changes.toString());
+        append();
+    }
+
+    // whether the log's grown enough to be worth replacing with a snapshot
+    synchronized boolean snapshotDue() {
+        return snapshot_due;
+    }
+
+    // replaces everything so far with this state, and starts a new segment
+    synchronized void snapshot(long server_rev, Rope server_text, Changeset sent_changes, Changeset pending_changes,
+            String user_id, boolean read_only) throws IOException {
+        checkOpen();
+
+        long next_seq = segment_seq + 1;
+
+        File tmp = new File(dir, "snapshot.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream dos = new DataOutputStream(cos);
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeInt(SNAPSHOT_VERSION);
+            dos.writeLong(server_rev);
+            dos.writeLong(next_seq);
+            writeString(dos, server_text.toString());
+            writeString(dos, sent_changes.toString());
+            writeString(dos, pending_changes.toString());
+            writeString(dos, (user_id != null) ? user_id : "");
+            dos.writeBoolean(read_only);
+            dos.flush();
+            dos.writeLong(cos.getChecksum().getValue());
+            dos.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // from here on recovery starts at next_seq, the rest can go
+        startSegment(next_seq, segment_size);
+        deleteSegmentsBefore(next_seq);
+        snapshot_due = false;
+        records_since_snapshot = 0;
+        snapshots++;
+    }
+
+    // force what's been written out to the disk now
+    public void sync() throws IOException {
+        MappedByteBuffer b;
+        synchronized (this) {
+            sync_scheduled = false;
+            b = out;
+        }
+        if (b != null) {
+            b.force();
+            syncs++;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (out != null) {
+            out.force();
+            out = null;
+        }
+        closed = true;
+        release();
+    }
+
+    // ********** metrics
+
+    public long recordCount() {
+        return records;
+    }
+
+    public long bytesWritten() {
+        return bytes;
+    }
+
+    public long snapshotCount() {
+        return snapshots;
+    }
+
+    public long syncCount() {
+        return syncs;
+    }
+
+    public String toString() {
+        return "journal " + dir + ": " + records + " records, " + bytes + " bytes, "
+            + snapshots + " snapshots, " + syncs + " syncs";
+    }
+
+    // ********** writing records
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("journal " + dir + " is closed");
+        }
+        IOException e = sync_failure;
+        if (e != null) {
+            throw new IOException("journal " + dir + " failed to sync", e);
+        }
+    }
+
+    private void begin(byte type) throws IOException {
+        checkOpen();
+        scratch.clear();
+        scratch.put(type);
+    }
+
+    private void putString(String s) {
+        byte[] b = s.getBytes(UTF8);
+        if (scratch.remaining() < 4 + b.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + 4 + b.length));
+            scratch.flip();
+            bigger.put(scratch);
+            scratch = bigger;
+        }
+        scratch.putInt(b.length);
+        scratch.put(b);
+    }
+
+    private void append() throws IOException {
+        int length = scratch.position();
+        int need = 8 + length;
+
+        if (out == null || out.remaining() < need) {
+            if (out != null) {
+                // anything later goes into a new segment, which isn't worth
+                // having if this one's only partly used
+                out.force();
+                snapshot_due = true;
+            }
+            startSegment(segment_seq + 1, Math.max(segment_size, need));
+        }
+
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+
+        out.putInt(length);
+        out.putInt((int) crc.getValue());
+        out.put(scratch.array(), 0, length);
+
+        records++;
+        bytes += need;
+        if (++records_since_snapshot >= SNAPSHOT_RECORDS) {
+            snapshot_due = true;
+        }
+        written();
+    }
+
+    // batches the force to disk
+    private void written() throws IOException {
+        if (sync_interval_ns == 0) {
+            out.force();
+            syncs++;
+        } else if (!sync_scheduled) {
+            sync_scheduled = true;
+            syncTimer().schedule(sync_timeout, sync_interval_ns, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final Runnable sync_timeout = new Runnable() {
+        public void run() {
+            try {
+                sync();
+            } catch (IOException e) {
+                // what's written may never make it to the disk, so nothing
+                // after it should be taken as safe either
+                sync_failure = e;
+            }
+        }
+    };
+
+    // a new, zeroed, segment to append to
+    private void startSegment(long seq, int size) throws IOException {
+        File f = segmentFile(seq);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+        segment_seq = seq;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%016x.log", seq));
+    }
+
+    // segment numbers in dir, in order
+    private long[] segments() {
+        String[] names = dir.list();
+        long[] seqs = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.length() == 20 && name.endsWith(".log")) {
+                try {
+                    seqs[count++] = Long.parseLong(name.substring(0, 16), 16);
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        seqs = Arrays.copyOf(seqs, count);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    private void deleteSegmentsBefore(long seq) {
+        for (long s : segments()) {
+            if (s < seq) {
+                segmentFile(s).delete();
+            }
+        }
+    }
+
+    private void release() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock_file.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] b = new byte[dis.readInt()];
+        dis.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // ********** recovery
+
+    // replays the log onto the snapshot, leaves the journal ready to append
+    // to where the log ends
+    private void recover() throws IOException {
+        File snapshot_file = new File(dir, "snapshot");
+        new File(dir, "snapshot.tmp").delete();
+
+        if (!snapshot_file.exists()) {
+            // nothing to replay onto, anything here is from before the
+            // first snapshot finished
+            deleteSegmentsBefore(Long.MAX_VALUE);
+            segment_seq = 0;
+            return;
+        }
+
+        long server_rev;
+        long first_seq;
+        Rope server_text;
+        Changeset sent_changes;
+        Changeset.Composer pending = new Changeset.Composer();
+        String user_id;
+        boolean read_only;
+
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot_file), 1 << 16));
+        try {
+            CRC32 check = new CRC32();
+            DataInputStream cis = new DataInputStream(new CheckedInputStream(dis, check));
+            if (cis.readInt() != SNAPSHOT_MAGIC || cis.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("not a journal snapshot: " + snapshot_file);
+            }
+            server_rev = cis.readLong();
+            first_seq = cis.readLong();
+            server_text = Rope.of(readString(cis));
+            sent_changes = new Changeset(readString(cis));
+            pending.add(new Changeset(readString(cis)));
+            user_id = readString(cis);
+            if (user_id.isEmpty()) {
+                user_id = null;
+            }
+            read_only = cis.readBoolean();
+            if (dis.readLong() != check.getValue()) {
+                throw new IOException("journal snapshot is corrupt: " + snapshot_file);
+            }
+        } catch (ChangesetException e) {
+            throw new IOException("bad changeset in journal snapshot " + snapshot_file, e);
+        } finally {
+            dis.close();
+        }
+
+        // segments left over from before a snapshot whose clean up was cut
+        // short
+        deleteSegmentsBefore(first_seq);
+
+        segment_seq = first_seq - 1;
+        boolean ended = false;
+
+        for (long seq : segments()) {
+            if (ended || seq != segment_seq + 1) {
+                // past the end of the log, or a gap in it
+                ended = true;
+                segmentFile(seq).delete();
+                continue;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(seq), "rw");
+            MappedByteBuffer b;
+            try {
+                b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            segment_seq = seq;
+            out = b;
+
+            try {
+                while (true) {
+                    int start = b.position();
+                    int length = (b.remaining() >= 8) ? b.getInt() : 0;
+                    if (length <= 0 || length > b.remaining() - 4) {
+                        b.position(start);
+                        break;
+                    }
+                    int record_crc = b.getInt();
+                    crc.reset();
+                    ByteBuffer record = b.slice();
+                    record.limit(length);
+                    crc.update(record.duplicate());
+                    if ((int) crc.getValue() != record_crc) {
+                        b.position(start);
+                        break;
+                    }
+                    b.position(b.position() + length);
+
+                    switch (record.get()) {
+                    case LOCAL:
+                        pending.add(new Changeset(getString(record)));
+                        break;
+                    case SENT:
+                        sent_changes = pending.result();
+                        pending.clear();
+                        pending.add(Changeset.identity(sent_changes.newLen));
+                        break;
+                    case ACCEPT:
+                        server_text = sent_changes.applyToText(server_text);
+                        server_rev = record.getLong();
+                        sent_changes = Changeset.identity(server_text.length());
+                        break;
+                    case SERVER:
+                        server_rev = record.getLong();
+                        server_text = new Changeset(getString(record)).applyToText(server_text);
+                        sent_changes = new Changeset(getString(record));
+                        pending.clear();
+                        pending.add(new Changeset(getString(record)));
+                        break;
+                    default:
+                        throw new IOException("unknown journal record in " + segmentFile(seq));
+                    }
+                }
+            } catch (ChangesetException e) {
+                throw new IOException("bad changeset in journal " + segmentFile(seq), e);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("bad journal record in " + segmentFile(seq), e);
+            }
+
+            if (b.hasRemaining() && b.get(b.position()) != 0) {
+                // a torn record, zero from there on so that nothing of it can
+                // be mistaken for a record after what's appended next
+                ended = true;
+                for (int i = b.position(); i < b.limit(); i++) {
+                    b.put(i, (byte) 0);
+                }
+                b.force();
+            }
+        }
+
+        // squash what was replayed into a snapshot the next time there's
+        // a record, rather than holding up picking back up with it
+        snapshot_due = (segment_seq >= first_seq);
+
+        try {
+            recovered = new State(server_rev, server_text, sent_changes, pending.result(), user_id, read_only);
+        } catch (ChangesetException e) {
+            throw new IOException("bad changesets in journal " + dir, e);
+        }
+    }
+}
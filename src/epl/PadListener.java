@@ -0,0 +1,52 @@
+package epl;
+
+// hears about what happens to a Pad, as an alternative to polling update()
+// and diffing getState()
+// events come in the order they happened, after the pad's lock has been
+// released, so it's fine to call back into the pad from them; in push mode
+// (Pad.startPush()) they're all called on the pad's executor, otherwise on
+// whichever thread called update()
+// getState() and getCursors() are at least as new as the event being heard
+
+public interface PadListener {
+    // got CLIENT_VARS, the text has been replaced outright, or caught up on
+    // what was missed after reconnecting (which comes as textChanged() and
+    // acked() first)
+    void connected(Pad pad);
+
+    // the connection dropped; in push mode, awaitUpdate() and so PadClient's
+    // pads, the pad connects again by itself, backing off while that fails,
+    // and connected() says when it's back; when polling, update() does
+    void disconnected(Pad pad);
+
+    // the client text changed because of others' edits, change takes the
+    // client text before to the client text after (it's D in Pad's notation)
+    void textChanged(Pad pad, Changeset change);
+
+    // the server accepted our changes as revision new_rev
+    void acked(Pad pad, long new_rev);
+
+    // a user we didn't know about showed up, avatar is a copy
+    void userJoined(Pad pad, Avatar avatar);
+
+    void userLeft(Pad pad, String user_id);
+
+    // a user's cursor was broadcast, avatar is a copy
+    void cursorMoved(Pad pad, Avatar avatar);
+
+    // only in push mode, processing stopped with this; like an exception
+    // out of update() the pad is probably no longer usable
+    void failed(Pad pad, PadException e);
+
+    // for listeners that only want a few of these
+    public static class Adapter implements PadListener {
+        public void connected(Pad pad) {}
+        public void disconnected(Pad pad) {}
+        public void textChanged(Pad pad, Changeset change) {}
+        public void acked(Pad pad, long new_rev) {}
+        public void userJoined(Pad pad, Avatar avatar) {}
+        public void userLeft(Pad pad, String user_id) {}
+        public void cursorMoved(Pad pad, Avatar avatar) {}
+        public void failed(Pad pad, PadException e) {}
+    }
+}
@@ -0,0 +1,26 @@
+package epl;
+
+// a tracked range of the client text, as handed out by Pad.getRange() and
+// Pad.getRanges()
+// [start, end), so an empty range has start == end
+// immutable, it's where the range was when it was asked for
+
+public class Range {
+    public final int handle;
+    public final int start;
+    public final int end;
+
+    public Range(int handle, int start, int end) {
+        this.handle = handle;
+        this.start = start;
+        this.end = end;
+    }
+
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    public String toString() {
+        return "[" + start + ", " + end + ")#" + handle;
+    }
+}
@@ -0,0 +1,350 @@
+package epl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// a Pad's tracked ranges: a treap ordered by start, each node also keeping
+// the furthest end in its subtree for overlap queries
+// an edit moves everything after it by the same amount, which is a lazy
+// shift on the subtree of ranges starting after it, pushed down only as
+// later operations go through; the ranges starting before it that end
+// after it are all that get touched one by one, and max_end finds them
+// without looking at the rest
+// so a change costs O(log n) per op plus the ranges it lands inside, and
+// the ones it deletes
+// ranges don't grow: text inserted at either end goes outside, and text
+// inserted inside an empty one goes before it; deleted text takes the
+// part of a range in it along
+// the pad updates this under its lock
+
+class RangeTree {
+    private static final class Node {
+        int start;
+        int end;
+        int max_end;
+        // still to be added to everything in the subtrees below
+        int lazy = 0;
+        final int priority;
+        final int handle;
+        Node left = null;
+        Node right = null;
+        Node parent = null;
+
+        Node(int start, int end, int priority, int handle) {
+            this.start = start;
+            this.end = end;
+            this.max_end = end;
+            this.priority = priority;
+            this.handle = handle;
+        }
+    }
+
+    private Node root = null;
+
+    // by handle, null once removed; removed handles are reused
+    private Node[] nodes = new Node[16];
+    private int size = 0;
+    private int[] free = new int[16];
+    private int free_count = 0;
+
+    // xorshift, for the priorities
+    private int seed = 0x2545f491;
+
+    int count() {
+        return size - free_count;
+    }
+
+    int add(int start, int end) {
+        if (start > end) {
+            throw new IllegalArgumentException("range [" + start + ", " + end + ") ends before it starts");
+        }
+
+        int handle;
+        if (free_count > 0) {
+            handle = free[--free_count];
+        } else {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            handle = size++;
+        }
+
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        Node n = new Node(start, end, seed, handle);
+        nodes[handle] = n;
+
+        // after any that start in the same place
+        Node[] lr = split(root, start + 1);
+        root = merge(merge(lr[0], n), lr[1]);
+        root.parent = null;
+        return handle;
+    }
+
+    boolean has(int handle) {
+        return handle >= 0 && handle < size && nodes[handle] != null;
+    }
+
+    void remove(int handle) {
+        Node n = node(handle);
+        pushPath(n);
+
+        Node p = n.parent;
+        Node sub = merge(n.left, n.right);
+        if (sub != null) {
+            sub.parent = p;
+        }
+        if (p == null) {
+            root = sub;
+        } else {
+            if (p.left == n) {
+                p.left = sub;
+            } else {
+                p.right = sub;
+            }
+            for (; p != null; p = p.parent) {
+                pull(p);
+            }
+        }
+
+        nodes[handle] = null;
+        if (free_count == free.length) {
+            free = Arrays.copyOf(free, free_count * 2);
+        }
+        free[free_count++] = handle;
+    }
+
+    // where the range is now
+    Range get(int handle) {
+        Node n = node(handle);
+        // what's still to come down to it from above
+        int shift = 0;
+        for (Node p = n.parent; p != null; p = p.parent) {
+            shift += p.lazy;
+        }
+        return new Range(handle, n.start + shift, n.end + shift);
+    }
+
+    // the ranges overlapping [from, to), and the empty ones in it, by start
+    ArrayList<Range> overlapping(int from, int to) {
+        ArrayList<Range> found = new ArrayList<Range>();
+        collect(root, 0, from, to, found);
+        return found;
+    }
+
+    // ********** edits
+
+    // moves every range through cs, working from the end of the text back
+    // so that each edit is at its position in the old text, with what's
+    // before it not moved yet
+    void translate(Changeset cs) {
+        if (root == null) {
+            return;
+        }
+
+        int count = 0;
+        char[] opcodes = new char[16];
+        int[] positions = new int[16];
+        int[] lengths = new int[16];
+
+        int old_pos = 0;
+        for (Changeset.OpIterator o = cs.opIterator(); o.next(); ) {
+            if (o.opcode != '=') {
+                if (count == opcodes.length) {
+                    opcodes = Arrays.copyOf(opcodes, count * 2);
+                    positions = Arrays.copyOf(positions, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                opcodes[count] = o.opcode;
+                positions[count] = old_pos;
+                lengths[count] = o.chars;
+                count++;
+            }
+            if (o.opcode != '+') {
+                old_pos += o.chars;
+            }
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            if (opcodes[i] == '+') {
+                insert(positions[i], lengths[i]);
+            } else {
+                delete(positions[i], positions[i] + lengths[i]);
+            }
+        }
+    }
+
+    private void insert(int pos, int length) {
+        // starting at pos or after, the whole range moves along
+        Node[] lr = split(root, pos);
+        shift(lr[1], length);
+        // starting before and ending after, only the end
+        fixEnds(lr[0], pos, pos, length);
+        root = merge(lr[0], lr[1]);
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    private void delete(int start, int end) {
+        Node[] lr = split(root, start);
+        Node[] mr = split(lr[1], end);
+        // starting after, the whole range moves back
+        shift(mr[1], start - end);
+        // starting inside, they all start at start now
+        collapse(mr[0], start, end);
+        // starting before, they might end inside or after
+        fixEnds(lr[0], start, end, start - end);
+        root = merge(merge(lr[0], mr[0]), mr[1]);
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    // ends after start go to start if they're before end, otherwise they
+    // move by shift (for an insert start and end are both where it is)
+    private static void fixEnds(Node n, int start, int end, int shift) {
+        if (n == null || n.max_end <= start) {
+            return;
+        }
+        push(n);
+        if (n.end > start) {
+            n.end = (n.end < end) ? start : n.end + shift;
+        }
+        fixEnds(n.left, start, end, shift);
+        fixEnds(n.right, start, end, shift);
+        pull(n);
+    }
+
+    private static void collapse(Node n, int start, int end) {
+        if (n == null) {
+            return;
+        }
+        push(n);
+        n.start = start;
+        n.end = (n.end < end) ? start : n.end - (end - start);
+        collapse(n.left, start, end);
+        collapse(n.right, start, end);
+        pull(n);
+    }
+
+    // ********** treap
+
+    private Node node(int handle) {
+        if (!has(handle)) {
+            throw new IllegalArgumentException("no range " + handle);
+        }
+        return nodes[handle];
+    }
+
+    private static void shift(Node n, int d) {
+        if (n != null && d != 0) {
+            n.start += d;
+            n.end += d;
+            n.max_end += d;
+            n.lazy += d;
+        }
+    }
+
+    private static void push(Node n) {
+        if (n.lazy != 0) {
+            shift(n.left, n.lazy);
+            shift(n.right, n.lazy);
+            n.lazy = 0;
+        }
+    }
+
+    private static void pull(Node n) {
+        int max = n.end;
+        if (n.left != null) {
+            max = Math.max(max, n.left.max_end);
+            n.left.parent = n;
+        }
+        if (n.right != null) {
+            max = Math.max(max, n.right.max_end);
+            n.right.parent = n;
+        }
+        n.max_end = max;
+    }
+
+    // pushes everything pending from the root down to n
+    private void pushPath(Node n) {
+        Node[] path = new Node[64];
+        int depth = 0;
+        for (Node p = n; p != null; p = p.parent) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = p;
+        }
+        while (depth > 0) {
+            push(path[--depth]);
+        }
+    }
+
+    // { starting before key, starting at key or after }
+    private static Node[] split(Node n, int key) {
+        Node[] lr = new Node[2];
+        if (n == null) {
+            return lr;
+        }
+
+        push(n);
+        if (n.start < key) {
+            Node[] sub = split(n.right, key);
+            n.right = sub[0];
+            pull(n);
+            lr[0] = n;
+            lr[1] = sub[1];
+        } else {
+            Node[] sub = split(n.left, key);
+            n.left = sub[1];
+            pull(n);
+            lr[0] = sub[0];
+            lr[1] = n;
+        }
+        return lr;
+    }
+
+    // everything in a starts no later than everything in b
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            pull(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            pull(b);
+            return b;
+        }
+    }
+
+    // shift is what's pending from above n
+    private static void collect(Node n, int shift, int from, int to, ArrayList<Range> found) {
+        if (n == null || n.max_end + shift < from) {
+            return;
+        }
+
+        int start = n.start + shift;
+        int end = n.end + shift;
+        int below = shift + n.lazy;
+
+        collect(n.left, below, from, to, found);
+        if (start < to && (end > from || (start == end && start >= from))) {
+            found.add(new Range(n.handle, start, end));
+        }
+        if (start < to) {
+            collect(n.right, below, from, to, found);
+        }
+    }
+}
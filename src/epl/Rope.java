@@ -0,0 +1,514 @@
+package epl;
+
+import java.util.AbstractList;
+import java.util.List;
+
+// immutable text stored as a balanced (AVL) tree of string chunks
+// slicing and concatenating share structure with the original rather than
+// copying it, so applying an edit to a large document costs O(log n) per op
+// instead of rebuilding the whole string
+// also keeps count of newlines so line bookkeeping doesn't need to scan, and
+// a polynomial hash of the text that's only recomputed for new nodes
+
+public final class Rope implements CharSequence {
+    // chunks no longer than this are kept as a single flat string
+    static final int LEAF_MAX = 1024;
+
+    public static final Rope EMPTY = new Rope("");
+
+    // exactly one of leaf or (left, right) is set
+    private final String leaf;
+    private final Rope left;
+    private final Rope right;
+
+    private final int length;
+    private final int height;
+    private final int newlines;
+
+    // polynomial hash of the text mod HASH_MOD, computed on first use and
+    // cached, -1 until then; see fingerprint()
+    private volatile long hash = -1;
+
+    private Rope(String leaf) {
+        this.leaf = leaf;
+        this.left = null;
+        this.right = null;
+        this.length = leaf.length();
+        this.height = 0;
+        this.newlines = Changeset.countNewlines(leaf, 0, leaf.length());
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.leaf = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.height = Math.max(left.height, right.height) + 1;
+        this.newlines = left.newlines + right.newlines;
+    }
+
+    public static Rope of(String s) {
+        if (s.length() == 0) {
+            return EMPTY;
+        }
+        return build(s, 0, s.length());
+    }
+
+    // balanced tree over s[start, end)
+    private static Rope build(String s, int start, int end) {
+        if (end - start <= LEAF_MAX) {
+            return new Rope(s.substring(start, end));
+        }
+
+        // split on a chunk boundary so the leaves come out full
+        int chunks = (end - start + LEAF_MAX - 1) / LEAF_MAX;
+        int mid = start + (chunks / 2) * LEAF_MAX;
+
+        return new Rope(build(s, start, mid), build(s, mid, end));
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    // number of '\n' in the text
+    public int newlines() {
+        return newlines;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+
+        Rope r = this;
+        while (r.leaf == null) {
+            if (index < r.left.length) {
+                r = r.left;
+            } else {
+                index -= r.left.length;
+                r = r.right;
+            }
+        }
+        return r.leaf.charAt(index);
+    }
+
+    public Rope concat(Rope other) {
+        return join(this, other);
+    }
+
+    // end is noninclusive
+    public Rope subSequence(int start, int end) {
+        checkRange(start, end);
+        return sub(start, end);
+    }
+
+    // end is noninclusive
+    public String substring(int start, int end) {
+        checkRange(start, end);
+        StringBuilder sb = new StringBuilder(end - start);
+        appendTo(sb, start, end);
+        return sb.toString();
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+    }
+
+    private Rope sub(int start, int end) {
+        if (start == 0 && end == length) {
+            return this;
+        }
+        if (start >= end) {
+            return EMPTY;
+        }
+        if (leaf != null) {
+            return new Rope(leaf.substring(start, end));
+        }
+
+        int ll = left.length;
+        if (end <= ll) {
+            return left.sub(start, end);
+        } else if (start >= ll) {
+            return right.sub(start - ll, end - ll);
+        } else {
+            return join(left.sub(start, ll), right.sub(0, end - ll));
+        }
+    }
+
+    // number of '\n' in [start, end)
+    public int countNewlines(int start, int end) {
+        checkRange(start, end);
+        return newlinesBefore(end) - newlinesBefore(start);
+    }
+
+    // number of '\n' in [0, pos)
+    int newlinesBefore(int pos) {
+        Rope r = this;
+        int count = 0;
+
+        while (r.leaf == null) {
+            if (pos <= r.left.length) {
+                r = r.left;
+            } else {
+                count += r.left.newlines;
+                pos -= r.left.length;
+                r = r.right;
+            }
+        }
+        return count + Changeset.countNewlines(r.leaf, 0, pos);
+    }
+
+    // index of the nth '\n' (counting from 0), or -1 if there aren't that many
+    int indexOfNewline(int n) {
+        if (n < 0 || n >= newlines) {
+            return -1;
+        }
+
+        Rope r = this;
+        int offset = 0;
+
+        while (r.leaf == null) {
+            if (n < r.left.newlines) {
+                r = r.left;
+            } else {
+                n -= r.left.newlines;
+                offset += r.left.length;
+                r = r.right;
+            }
+        }
+
+        int i = -1;
+        for (int c = 0; c <= n; c++) {
+            i = r.leaf.indexOf('\n', i + 1);
+        }
+        return offset + i;
+    }
+
+    // index of the last '\n' in [start, end), or -1 if there is none
+    public int lastNewline(int start, int end) {
+        checkRange(start, end);
+        int before_end = newlinesBefore(end);
+        if (before_end == newlinesBefore(start)) {
+            return -1;
+        }
+        return indexOfNewline(before_end - 1);
+    }
+
+    // ********** lines
+    // a line runs up to and including its '\n', with whatever follows the
+    // last one as one more line (in a pad's text, which always ends in '\n',
+    // there's nothing there); the newline counts in the nodes make finding
+    // them O(log n), and as applying a changeset only builds new nodes where
+    // it touched the text, they're kept up to date along with it
+
+    // number of lines
+    public int lineCount() {
+        if (length > 0 && charAt(length - 1) != '\n') {
+            return newlines + 1;
+        }
+        return newlines;
+    }
+
+    // the line pos is in, counting from 0; the end of a text that ends in
+    // '\n' is the start of line lineCount()
+    public int lineOfOffset(int pos) {
+        checkRange(pos, pos);
+        return newlinesBefore(pos);
+    }
+
+    // where line n starts, n can be lineCount() for the end of the text
+    public int offsetOfLine(int n) {
+        if (n < 0 || n > lineCount()) {
+            throw new IndexOutOfBoundsException("line " + n + ", line count " + lineCount());
+        }
+        if (n == 0) {
+            return 0;
+        }
+        if (n > newlines) {
+            return length;
+        }
+        return indexOfNewline(n - 1) + 1;
+    }
+
+    // line n, with its '\n'
+    public Rope line(int n) {
+        if (n < 0 || n >= lineCount()) {
+            throw new IndexOutOfBoundsException("line " + n + ", line count " + lineCount());
+        }
+        return sub(offsetOfLine(n), offsetOfLine(n + 1));
+    }
+
+    // the lines as a list, each one looked up (and sliced, sharing
+    // structure) as it's asked for rather than splitting the text up front
+    public List<Rope> lines() {
+        return new AbstractList<Rope>() {
+            public Rope get(int n) {
+                return line(n);
+            }
+
+            public int size() {
+                return lineCount();
+            }
+        };
+    }
+
+    public void appendTo(StringBuilder sb) {
+        appendTo(sb, 0, length);
+    }
+
+    // end is noninclusive
+    public void appendTo(StringBuilder sb, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if (leaf != null) {
+            sb.append(leaf, start, end);
+            return;
+        }
+
+        int ll = left.length;
+        if (start < ll) {
+            left.appendTo(sb, start, Math.min(end, ll));
+        }
+        if (end > ll) {
+            right.appendTo(sb, Math.max(start, ll) - ll, end - ll);
+        }
+    }
+
+    public String toString() {
+        if (leaf != null) {
+            return leaf;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    // from the fingerprint, so it's cached; not the String's hashCode, as
+    // a Rope is never equals() to a String
+    public int hashCode() {
+        long h = fingerprint();
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // content equality, with other Ropes only; see contentEquals() for
+    // comparing with a String
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Rope)) {
+            return false;
+        }
+
+        Rope other = (Rope) o;
+        if (other.length != length || other.newlines != newlines) {
+            return false;
+        }
+
+        // walk both sets of leaves side by side
+        Leaves a = new Leaves(this);
+        Leaves b = new Leaves(other);
+        String sa = a.next(), sb = b.next();
+        int ia = 0, ib = 0;
+
+        while (sa != null && sb != null) {
+            int n = Math.min(sa.length() - ia, sb.length() - ib);
+            if (!sa.regionMatches(ia, sb, ib, n)) {
+                return false;
+            }
+            ia += n;
+            ib += n;
+            if (ia == sa.length()) {
+                sa = a.next();
+                ia = 0;
+            }
+            if (ib == sb.length()) {
+                sb = b.next();
+                ib = 0;
+            }
+        }
+        return true;
+    }
+
+    // whether s has the same text, as String.contentEquals()
+    public boolean contentEquals(CharSequence s) {
+        if (s instanceof Rope) {
+            return equals(s);
+        }
+        if (s.length() != length) {
+            return false;
+        }
+
+        int pos = 0;
+        Leaves leaves = new Leaves(this);
+        for (String l = leaves.next(); l != null; l = leaves.next()) {
+            for (int i = 0; i < l.length(); i++) {
+                if (l.charAt(i) != s.charAt(pos + i)) {
+                    return false;
+                }
+            }
+            pos += l.length();
+        }
+        return true;
+    }
+
+    // in-order iteration over the leaf strings
+    private static class Leaves {
+        private final Rope[] stack;
+        private int depth;
+
+        Leaves(Rope root) {
+            stack = new Rope[root.height + 1];
+            depth = 0;
+            push(root);
+        }
+
+        private void push(Rope r) {
+            while (r.leaf == null) {
+                stack[depth++] = r.right;
+                r = r.left;
+            }
+            stack[depth++] = r;
+        }
+
+        String next() {
+            while (depth > 0) {
+                Rope r = stack[--depth];
+                if (r.leaf == null) {
+                    push(r);
+                    continue;
+                }
+                if (r.length > 0) {
+                    return r.leaf;
+                }
+            }
+            return null;
+        }
+    }
+
+    // ********** content hash
+    // h(s) = sum of s[i] * HASH_BASE^(len-1-i) mod HASH_MOD, which composes:
+    // h(l + r) = h(l) * HASH_BASE^len(r) + h(r), so a node's hash comes from
+    // its children's and an edit only has to hash the nodes it created
+
+    // 2^61 - 1, a Mersenne prime so reducing is shifts and adds
+    static final long HASH_MOD = (1L << 61) - 1;
+    static final long HASH_BASE = 0x0123456789abcdefL & HASH_MOD;
+
+    // a hash of the text for comparing replicas or deduping snapshots
+    // without looking at the whole text: equal texts always have equal
+    // fingerprints however the trees are shaped (and across processes, the
+    // base is fixed), unequal ones collide with probability about
+    // length / 2^61
+    // cached per node, so after an edit this only costs the nodes the
+    // edit created
+    public long fingerprint() {
+        long h = hash;
+        if (h < 0) {
+            if (leaf != null) {
+                h = hashOf(leaf, 0, leaf.length());
+            } else {
+                h = addMod(mulMod(left.fingerprint(), powMod(HASH_BASE, right.length)), right.fingerprint());
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    // the same fingerprint for a plain string
+    public static long fingerprintOf(CharSequence s) {
+        return hashOf(s, 0, s.length());
+    }
+
+    static long hashOf(CharSequence s, int start, int end) {
+        long h = 0;
+        for (int i = start; i < end; i++) {
+            h = addMod(mulMod(h, HASH_BASE), s.charAt(i));
+        }
+        return h;
+    }
+
+    // a and b are less than HASH_MOD
+    static long mulMod(long a, long b) {
+        long lo = a * b;
+        long hi = Math.multiplyHigh(a, b);
+        // the 122 bit product split at bit 61, as 2^61 == 1
+        long r = (lo & HASH_MOD) + ((lo >>> 61) | (hi << 3));
+        r = (r & HASH_MOD) + (r >>> 61);
+        return r >= HASH_MOD ? r - HASH_MOD : r;
+    }
+
+    static long addMod(long a, long b) {
+        long r = a + b;
+        return r >= HASH_MOD ? r - HASH_MOD : r;
+    }
+
+    static long powMod(long base, int exp) {
+        long r = 1;
+        while (exp > 0) {
+            if ((exp & 1) != 0) {
+                r = mulMod(r, base);
+            }
+            base = mulMod(base, base);
+            exp >>>= 1;
+        }
+        return r;
+    }
+
+    // ********** balancing
+
+    private static Rope join(Rope l, Rope r) {
+        if (l.length == 0) {
+            return r;
+        }
+        if (r.length == 0) {
+            return l;
+        }
+        if (l.length + r.length <= LEAF_MAX) {
+            // small enough to flatten, keeps edits from fragmenting the leaves
+            StringBuilder sb = new StringBuilder(l.length + r.length);
+            l.appendTo(sb);
+            r.appendTo(sb);
+            return new Rope(sb.toString());
+        }
+
+        if (l.height > r.height + 1) {
+            return balance(l.left, join(l.right, r));
+        } else if (r.height > l.height + 1) {
+            return balance(join(l, r.left), r.right);
+        } else {
+            return new Rope(l, r);
+        }
+    }
+
+    // a and b are balanced and their heights should differ by at most 2
+    private static Rope balance(Rope a, Rope b) {
+        if (Math.abs(a.height - b.height) > 2) {
+            // a flattened join came out shorter than expected
+            return join(a, b);
+        }
+
+        if (a.height > b.height + 1) {
+            if (a.left.height >= a.right.height) {
+                return new Rope(a.left, new Rope(a.right, b));
+            } else {
+                return new Rope(new Rope(a.left, a.right.left), new Rope(a.right.right, b));
+            }
+        } else if (b.height > a.height + 1) {
+            if (b.right.height >= b.left.height) {
+                return new Rope(new Rope(a, b.left), b.right);
+            } else {
+                return new Rope(new Rope(a, b.left.left), new Rope(b.left.right, b.right));
+            }
+        }
+        return new Rope(a, b);
+    }
+}
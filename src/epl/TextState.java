@@ -1,23 +1,72 @@
 package epl;
 
+import java.util.List;
+
 // this class represents a coherent snapshot of text
+// the texts are immutable Ropes shared with the Pad, so taking a snapshot
+// doesn't copy the document
+// they used to be Strings: code that wants one can use serverText() and
+// clientText(), and should compare with contentEquals() rather than
+// equals(), which is only true for another Rope
 
 public class TextState {
     // last known revision from the server
-    public final String server_text;
+    public final Rope server_text;
     public final long server_rev;
 
     // our local state
-    public final String client_text;
+    public final Rope client_text;
     public final long client_rev;
+    // by handle, see Pad.registerMarker(); null for unregistered ones
     public final Marker[] client_markers;
 
-    public TextState(String server_text, long server_rev, String client_text, long client_rev, Marker[] client_markers) {
+    // content fingerprints of the two texts, see Rope.fingerprint()
+    // two replicas (or two snapshots) with the same length and fingerprint
+    // have the same text, barring a ~2^-61 collision
+    public final long server_fingerprint;
+    public final long client_fingerprint;
+
+    // the texts flattened, only if asked for
+    private volatile String server_string = null;
+    private volatile String client_string = null;
+
+    public TextState(Rope server_text, long server_rev, Rope client_text, long client_rev, Marker[] client_markers) {
         this.server_text = server_text;
         this.server_rev = server_rev;
         this.client_text = client_text;
         this.client_rev = client_rev;
         this.client_markers = client_markers;
+
+        // cached in the Ropes, this only hashes what's changed since the
+        // texts were last fingerprinted
+        this.server_fingerprint = server_text.fingerprint();
+        this.client_fingerprint = client_text.fingerprint();
+    }
+
+    // the texts as Strings, copied out the first time they're asked for
+    public String serverText() {
+        String s = server_string;
+        if (s == null) {
+            s = server_text.toString();
+            server_string = s;
+        }
+        return s;
+    }
+
+    public String clientText() {
+        String s = client_string;
+        if (s == null) {
+            s = client_text.toString();
+            client_string = s;
+        }
+        return s;
+    }
+
+    // the client text line by line, without splitting it up; for finding
+    // lines by offset and offsets by line see Rope.lineOfOffset() and
+    // Rope.offsetOfLine()
+    public List<Rope> clientLines() {
+        return client_text.lines();
     }
 
 }
@@ -0,0 +1,67 @@
+package epl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+// virtual threads (JDK 21 on) if the JVM has them, found by reflection so
+// that this still builds and runs on older JDKs
+
+final class VirtualThreads {
+    private VirtualThreads() {}
+
+    // a new Thread.ofVirtual(), or null if there isn't one; builders
+    // aren't thread safe, so each factory gets its own
+    private static Object newBuilder() {
+        try {
+            return Thread.class.getMethod("ofVirtual").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static final boolean available = (newBuilder() != null);
+
+    static boolean available() {
+        return available;
+    }
+
+    private static Method findIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static final Method is_virtual = findIsVirtual();
+
+    // false where there are no virtual threads
+    static boolean isVirtual(Thread t) {
+        if (is_virtual == null) {
+            return false;
+        }
+        try {
+            return (Boolean) is_virtual.invoke(t);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // makes virtual threads named prefix0, prefix1, ..., or null if they
+    // aren't available
+    static ThreadFactory factory(String prefix) {
+        Object builder = newBuilder();
+        if (builder == null) {
+            return null;
+        }
+
+        try {
+            Class<?> builder_class = Class.forName("java.lang.Thread$Builder");
+            Method name = builder_class.getMethod("name", String.class, long.class);
+            Method factory = builder_class.getMethod("factory");
+            return (ThreadFactory) factory.invoke(name.invoke(builder, prefix, 0L));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -8,9 +8,15 @@ import java.util.Random;
 public class EPLTest {
     static final String pad_url = "http://10.0.2.15:9001/";
 
+    // runs the offline simulation by default (see epl.Simulation, which takes
+    // the same arguments); "-live" runs the old stress test against pad_url
     public static void main(String args[]) {
-        doStress();
-        //doDisco();
+        if (args.length > 0 && args[0].equals("-live")) {
+            doStress();
+            //doDisco();
+        } else {
+            Simulation.main(args);
+        }
     }
 
     static class Test implements Runnable {
@@ -0,0 +1,85 @@
+package epl;
+
+import org.json.*;
+
+// a PadConnection to a SimServer instead of a socket
+
+public class SimConnection extends PadConnection {
+    final SimServer server;
+    final Pad pad;
+
+    // set by the server when it sees CLIENT_READY
+    String user_id = null;
+    // the oldest revision this client can still base a change on
+    long base_floor = 0;
+
+    // messages can't overtake each other in either direction, so each is
+    // delivered no earlier than the one sent before it
+    long last_to_server = 0;
+    long last_to_client = 0;
+
+    // called after each message is delivered to the pad, or the connection
+    // closes, lets the driver know there's something to update() for
+    Runnable on_receive = null;
+
+    public SimConnection(Pad pad, SimServer server) {
+        super(pad);
+        this.pad = pad;
+        this.server = server;
+    }
+
+    public void open() throws PadException {
+        pad.connect(this);
+        startConnecting();
+        server.accept(this);
+    }
+
+    @Override
+    public void send(JSONObject json) {
+        server.fromClient(this, json);
+    }
+
+    @Override
+    public void disconnect() {
+        server.leave(this);
+        super.disconnect();
+        // the socket tells the pad afterwards
+        server.scheduler.after(1, new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    // the connection drops: the server finds out now, the pad when the
+    // socket notices, which isn't before what was already on its way
+    void drop() {
+        server.leave(this);
+        server.scheduler.at(Math.max(server.scheduler.now(), last_to_client) + 1, new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    private void close() {
+        closed();
+        if (on_receive != null) {
+            on_receive.run();
+        }
+    }
+
+    void deliver(JSONObject json) {
+        received(json);
+        if (on_receive != null) {
+            on_receive.run();
+        }
+    }
+
+    void deliver(String text) {
+        received(text);
+        if (on_receive != null) {
+            on_receive.run();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package epl;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// virtual clock and event queue for the simulation
+// everything runs on the calling thread, in time order with ties broken by
+// scheduling order, so a run is completely determined by its seed
+
+public class SimScheduler {
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable action;
+
+        Event(long time, long seq, Runnable action) {
+            this.time = time;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        public int compareTo(Event o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long now = 0;
+    private long next_seq = 0;
+    private long events_run = 0;
+
+    final Random random;
+
+    public SimScheduler(long seed) {
+        random = new Random(seed);
+    }
+
+    // virtual milliseconds since the start of the run
+    public long now() {
+        return now;
+    }
+
+    public long eventsRun() {
+        return events_run;
+    }
+
+    public void at(long time, Runnable action) {
+        if (time < now) {
+            time = now;
+        }
+        events.add(new Event(time, next_seq++, action));
+    }
+
+    public void after(long delay, Runnable action) {
+        at(now + delay, action);
+    }
+
+    // uniformly in [min, max]
+    public int between(int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    public boolean isIdle() {
+        return events.isEmpty();
+    }
+
+    // returns false once there's nothing left to run
+    public boolean runNext() {
+        Event e = events.poll();
+        if (e == null) {
+            return false;
+        }
+
+        now = e.time;
+        events_run++;
+        e.action.run();
+        return true;
+    }
+}
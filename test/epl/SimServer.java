@@ -0,0 +1,338 @@
+package epl;
+
+import org.json.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// an in-process stand-in for the Etherpad Lite server, hosting a single pad
+// it speaks just enough of the protocol for Pad: CLIENT_READY/CLIENT_VARS, or
+// with reconnect the CLIENT_RECONNECTs since client_rev, and in COLLABROOM,
+// USER_CHANGES answered with ACCEPT_COMMIT to the author and NEW_CHANGES to
+// everyone else, USER_NEWINFO, USER_LEAVE and CHAT_MESSAGE
+// messages take a random latency each way but stay in order per connection
+
+public class SimServer {
+    static final String[] color_palette = { "#ffc7c7", "#fff1c7", "#e3ffc7", "#c7ffd5", "#c7ffff", "#c7d5ff", "#e3c7ff", "#ffc7f1" };
+
+    // a revision of the pad, changeset is what made it from the previous one
+    static class Revision {
+        final Changeset changeset;
+        final Rope text;
+        final String author;
+        final long time;
+
+        Revision(Changeset changeset, Rope text, String author, long time) {
+            this.changeset = changeset;
+            this.text = text;
+            this.author = author;
+            this.time = time;
+        }
+    }
+
+    final SimScheduler scheduler;
+    final String pad_id;
+
+    int min_latency = 5;
+    int max_latency = 50;
+
+    // send messages to the clients as JSON text, like the socket would, so
+    // they're decoded from it (messages from the clients are always text)
+    boolean wire = false;
+
+    // revisions[i] is revision first_rev + i, older ones that no client can
+    // still be based on are dropped with forgetBefore()
+    private final ArrayList<Revision> revisions = new ArrayList<Revision>();
+    private long first_rev = 0;
+
+    private final ArrayList<SimConnection> connections = new ArrayList<SimConnection>();
+    // like Etherpad, the same token is always the same author
+    private final HashMap<String, String> authors = new HashMap<String, String>();
+    private int next_user = 0;
+
+    long messages_to_server = 0;
+    long messages_to_clients = 0;
+    long reconnects = 0;
+
+    public SimServer(SimScheduler scheduler, String pad_id, String initial_text) {
+        this.scheduler = scheduler;
+        this.pad_id = pad_id;
+        revisions.add(new Revision(null, Rope.of(initial_text), null, 0));
+    }
+
+    public long headRev() {
+        return first_rev + revisions.size() - 1;
+    }
+
+    public Rope headText() {
+        return revisions.get(revisions.size() - 1).text;
+    }
+
+    Revision revision(long rev) {
+        if (rev < first_rev || rev > headRev()) {
+            throw new IllegalStateException("revision " + rev + " not kept, have " + first_rev + " to " + headRev());
+        }
+        return revisions.get((int) (rev - first_rev));
+    }
+
+    public Rope textAt(long rev) {
+        return revision(rev).text;
+    }
+
+    public long timeOf(long rev) {
+        return revision(rev).time;
+    }
+
+    // a change from a client can be based on revisions it hasn't caught up
+    // to yet, so this won't go past what the connections may still need
+    public void forgetBefore(long rev) {
+        for (SimConnection conn : connections) {
+            rev = Math.min(rev, conn.base_floor);
+        }
+
+        int drop = (int) (Math.min(rev, headRev()) - first_rev);
+        // in bulk, so it isn't a shift per revision
+        if (drop > 0 && drop >= revisions.size() / 2) {
+            revisions.subList(0, drop).clear();
+            first_rev += drop;
+        }
+    }
+
+    // ********** transport
+
+    private int latency() {
+        return scheduler.between(min_latency, max_latency);
+    }
+
+    private JSONObject parse(String text) {
+        try {
+            return new JSONObject(text);
+        } catch (JSONException e) {
+            throw new IllegalStateException("message didn't survive the wire: " + text, e);
+        }
+    }
+
+    void accept(final SimConnection conn) {
+        scheduler.after(latency(), new Runnable() {
+            public void run() {
+                connections.add(conn);
+                conn.opened();
+            }
+        });
+    }
+
+    void leave(SimConnection conn) {
+        if (connections.remove(conn) && conn.user_id != null) {
+            JSONObject leave = collabRoom(obj(
+                "type", "USER_LEAVE",
+                "userInfo", obj("userId", conn.user_id)));
+            for (SimConnection other : connections) {
+                toClient(other, leave);
+            }
+        }
+    }
+
+    void fromClient(final SimConnection conn, JSONObject json) {
+        // the pad writes out its messages itself
+        final JSONObject sent = parse(json.toString());
+        long when = Math.max(scheduler.now() + latency(), conn.last_to_server);
+        conn.last_to_server = when;
+        messages_to_server++;
+
+        scheduler.at(when, new Runnable() {
+            public void run() {
+                if (connections.contains(conn)) {
+                    handle(conn, sent);
+                }
+            }
+        });
+    }
+
+    void toClient(final SimConnection conn, final JSONObject json) {
+        final String text = wire ? json.toString() : null;
+        long when = Math.max(scheduler.now() + latency(), conn.last_to_client);
+        conn.last_to_client = when;
+        messages_to_clients++;
+
+        scheduler.at(when, new Runnable() {
+            public void run() {
+                if (text != null) {
+                    conn.deliver(text);
+                } else {
+                    conn.deliver(json);
+                }
+            }
+        });
+    }
+
+    // ********** protocol
+
+    private void handle(SimConnection conn, JSONObject json) {
+        try {
+            String type = json.getString("type");
+
+            if ("CLIENT_READY".equals(type)) {
+                clientReady(conn, json);
+            } else if ("COLLABROOM".equals(type)) {
+                JSONObject data = json.getJSONObject("data");
+                String collab_type = data.getString("type");
+
+                if ("USER_CHANGES".equals(collab_type)) {
+                    userChanges(conn, data);
+                } else if ("CHAT_MESSAGE".equals(collab_type)) {
+                    JSONObject chat = collabRoom(obj(
+                        "type", "CHAT_MESSAGE",
+                        "userId", conn.user_id,
+                        "text", data.getString("text"),
+                        "time", scheduler.now()));
+                    for (SimConnection other : connections) {
+                        toClient(other, chat);
+                    }
+                } else {
+                    throw new IllegalStateException("unexpected COLLABROOM message " + collab_type);
+                }
+            } else {
+                throw new IllegalStateException("unexpected message " + type);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException("bad message from client: " + json, e);
+        } catch (ChangesetException e) {
+            throw new IllegalStateException("bad changeset from " + conn.user_id + ": " + json, e);
+        }
+    }
+
+    private void clientReady(SimConnection conn, JSONObject json) throws JSONException {
+        if (!pad_id.equals(json.getString("padId"))) {
+            throw new IllegalStateException("CLIENT_READY for unknown pad " + json.getString("padId"));
+        }
+
+        String token = json.getString("token");
+        conn.user_id = authors.get(token);
+        if (conn.user_id == null) {
+            conn.user_id = "a.sim" + (next_user++);
+            authors.put(token, conn.user_id);
+        }
+
+        if (json.optBoolean("reconnect")) {
+            clientReconnect(conn, json.getLong("client_rev"));
+        } else {
+            clientVars(conn);
+        }
+
+        // introduce everyone to everyone else
+        for (SimConnection other : connections) {
+            if (other != conn && other.user_id != null) {
+                toClient(other, userNewInfo(conn));
+                toClient(conn, userNewInfo(other));
+            }
+        }
+    }
+
+    private void clientVars(SimConnection conn) {
+        conn.base_floor = headRev();
+
+        toClient(conn, obj(
+            "type", "CLIENT_VARS",
+            "data", obj(
+                "serverTimestamp", scheduler.now(),
+                "userId", conn.user_id,
+                "readonly", false,
+                "readOnlyId", "r.sim" + pad_id,
+                "colorPalette", new JSONArray(java.util.Arrays.asList(color_palette)),
+                "collab_client_vars", obj(
+                    "initialAttributedText", obj("text", headText().toString()),
+                    "rev", headRev()))));
+    }
+
+    // what the client missed since client_rev, one message per revision
+    private void clientReconnect(SimConnection conn, long client_rev) {
+        conn.base_floor = client_rev;
+        reconnects++;
+
+        long head_rev = headRev();
+        if (client_rev >= head_rev) {
+            toClient(conn, collabRoom(obj(
+                "type", "CLIENT_RECONNECT",
+                "noChanges", true,
+                "newRev", head_rev)));
+            return;
+        }
+
+        for (long rev = client_rev + 1; rev <= head_rev; rev++) {
+            Revision r = revision(rev);
+            toClient(conn, collabRoom(obj(
+                "type", "CLIENT_RECONNECT",
+                "headRev", head_rev,
+                "newRev", rev,
+                "changeset", r.changeset.toString(),
+                "apool", obj("numToAttrib", obj(), "nextNum", 0),
+                "author", r.author,
+                "currentTime", r.time)));
+        }
+    }
+
+    private JSONObject userNewInfo(SimConnection conn) {
+        return collabRoom(obj(
+            "type", "USER_NEWINFO",
+            "userInfo", obj(
+                "userId", conn.user_id,
+                "name", "sim " + conn.user_id,
+                "colorId", connections.indexOf(conn) % color_palette.length)));
+    }
+
+    private void userChanges(SimConnection conn, JSONObject data) throws JSONException, ChangesetException {
+        long base_rev = data.getLong("baseRev");
+        Changeset cs = new Changeset(data.getString("changeset"));
+
+        // bring it up to the head the same way the clients do with
+        // their own changes, X' = f(B, X)
+        for (long rev = base_rev + 1; rev <= headRev(); rev++) {
+            cs = Changeset.follow(revision(rev).changeset, cs, false);
+        }
+
+        Rope head_text = headText();
+        if (cs.oldLen != head_text.length()) {
+            throw new IllegalStateException("changeset from " + conn.user_id + " based on rev " + base_rev
+                + " doesn't fit the head text, " + cs.oldLen + " != " + head_text.length());
+        }
+
+        revisions.add(new Revision(cs, cs.applyToText(head_text), conn.user_id, scheduler.now()));
+        long new_rev = headRev();
+        // the client won't send again until it has this ACCEPT_COMMIT
+        conn.base_floor = new_rev;
+
+        toClient(conn, collabRoom(obj(
+            "type", "ACCEPT_COMMIT",
+            "newRev", new_rev)));
+
+        JSONObject new_changes = collabRoom(obj(
+            "type", "NEW_CHANGES",
+            "newRev", new_rev,
+            "changeset", cs.toString(),
+            "apool", obj("numToAttrib", obj(), "nextNum", 0),
+            "author", conn.user_id,
+            "currentTime", scheduler.now(),
+            "timeDelta", JSONObject.NULL));
+        for (SimConnection other : connections) {
+            if (other != conn && other.user_id != null) {
+                toClient(other, new_changes);
+            }
+        }
+    }
+
+    private static JSONObject collabRoom(JSONObject data) {
+        return obj("type", "COLLABROOM", "data", data);
+    }
+
+    // key, value, key, value, ...
+    private static JSONObject obj(Object... kv) {
+        JSONObject json = new JSONObject();
+        try {
+            for (int i = 0; i < kv.length; i += 2) {
+                json.put((String) kv[i], kv[i + 1]);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException("failed building JSON", e);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,252 @@
+package epl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+// a simulated client's registered markers and tracked ranges, added and
+// removed at random as it edits, against slow obvious versions of them:
+// each marker moved on its own with Changeset.translateMarker(), and each
+// range end by end over a plain map
+// it hears about others' edits as a listener and is told about the
+// client's own; when the pad's connected() the text may have been replaced
+// outright, which nothing moves markers through, so it starts over from
+// what the pad has
+// events only go out once update() is done, by which time the pad has
+// already moved its markers through any changes heard after connecting, so
+// it doesn't start over until the next check(), and ignores those changes
+
+class SimTracker extends PadListener.Adapter {
+    final Pad pad;
+    final int max_markers;
+    final int max_ranges;
+    final Random random;
+
+    private final HashMap<Integer, Marker> markers = new HashMap<Integer, Marker>();
+    private final ArrayList<Integer> marker_handles = new ArrayList<Integer>();
+    private final HashMap<Integer, int[]> ranges = new HashMap<Integer, int[]>();
+    private final ArrayList<Integer> range_handles = new ArrayList<Integer>();
+
+    // metrics
+    long added = 0;
+    long removed = 0;
+    long checks = 0;
+
+    // connected() since the last check()
+    private boolean stale = false;
+
+    SimTracker(Pad pad, int max_markers, int max_ranges, Random random) {
+        this.pad = pad;
+        this.max_markers = max_markers;
+        this.max_ranges = max_ranges;
+        this.random = random;
+        pad.addListener(this);
+    }
+
+    // ********** what moves them
+
+    public void textChanged(Pad p, Changeset change) {
+        if (!stale) {
+            translate(change);
+        }
+    }
+
+    public void connected(Pad p) {
+        stale = true;
+    }
+
+    // the client's own edit, just made on text
+    void edited(Rope text, int pos, int removing, String new_s) throws ChangesetException {
+        if (stale) {
+            return;
+        }
+        translate(Changeset.simpleEdit(text, pos, removing, new_s));
+    }
+
+    private void translate(Changeset cs) {
+        for (Integer h : marker_handles) {
+            markers.put(h, cs.translateMarker(markers.get(h)));
+        }
+        for (Integer h : range_handles) {
+            int[] r = ranges.get(h);
+            // text inserted at either end goes outside, so the start moves
+            // along with it and the end doesn't; but an empty range goes
+            // after it altogether
+            boolean empty = (r[0] == r[1]);
+            r[0] = movePos(cs, r[0], true);
+            r[1] = movePos(cs, r[1], empty);
+        }
+    }
+
+    // where pos in the old text goes in the new, going after text inserted
+    // right at it if push, otherwise before; collapsing to where deleted
+    // text was
+    static int movePos(Changeset cs, int pos, boolean push) {
+        int old_pos = 0;
+        int new_pos = 0;
+        for (Changeset.OpIterator o = cs.opIterator(); o.next(); ) {
+            if (o.opcode == '+') {
+                if (old_pos == pos && !push) {
+                    return new_pos;
+                }
+                new_pos += o.chars;
+            } else if (pos < old_pos + o.chars) {
+                return (o.opcode == '=') ? new_pos + (pos - old_pos) : new_pos;
+            } else {
+                old_pos += o.chars;
+                if (o.opcode == '=') {
+                    new_pos += o.chars;
+                }
+            }
+        }
+        return new_pos + (pos - old_pos);
+    }
+
+    // only between update()s, when the pad's events have all gone out
+    private void resync() {
+        stale = false;
+        markers.clear();
+        marker_handles.clear();
+        Marker[] ms = pad.getState().client_markers;
+        for (int h = 0; h < ms.length; h++) {
+            if (ms[h] != null) {
+                markers.put(h, ms[h]);
+                marker_handles.add(h);
+            }
+        }
+
+        ranges.clear();
+        range_handles.clear();
+        for (Range r : pad.getRanges(0, Integer.MAX_VALUE)) {
+            ranges.put(r.handle, new int[] { r.start, r.end });
+            range_handles.add(r.handle);
+        }
+        // the same order as the handles were added in, so runs replay
+        Collections.sort(marker_handles);
+        Collections.sort(range_handles);
+    }
+
+    // ********** churn
+
+    // add one of each, or swap one for another once there are enough,
+    // sometimes a few at once so handles go back on the free lists
+    void churn() throws PadException {
+        if (stale) {
+            resync();
+        }
+        int len = pad.getState().client_text.length();
+
+        if (max_markers > 0) {
+            int n = (random.nextInt(8) == 0) ? random.nextInt(4) + 1 : 1;
+            for (int i = 0; i < n && marker_handles.size() >= max_markers; i++) {
+                int h = marker_handles.remove(random.nextInt(marker_handles.size()));
+                markers.remove(h);
+                pad.unregisterMarker(h);
+                removed++;
+            }
+            for (int i = 0; i < n && marker_handles.size() < max_markers; i++) {
+                Marker m = new Marker(random.nextInt(len), random.nextBoolean(), true);
+                int h = pad.registerMarker(m.pos, m.before, m.valid);
+                if (markers.put(h, m) != null) {
+                    throw new IllegalStateException("marker handle " + h + " handed out twice");
+                }
+                marker_handles.add(h);
+                added++;
+            }
+        }
+
+        if (max_ranges > 0) {
+            int n = (random.nextInt(8) == 0) ? random.nextInt(4) + 1 : 1;
+            for (int i = 0; i < n && range_handles.size() >= max_ranges; i++) {
+                int h = range_handles.remove(random.nextInt(range_handles.size()));
+                ranges.remove(h);
+                pad.removeRange(h);
+                removed++;
+            }
+            for (int i = 0; i < n && range_handles.size() < max_ranges; i++) {
+                int start = random.nextInt(len + 1);
+                int end = start + random.nextInt(Math.min(16, len - start) + 1);
+                int h = pad.addRange(start, end);
+                if (ranges.put(h, new int[] { start, end }) != null) {
+                    throw new IllegalStateException("range handle " + h + " handed out twice");
+                }
+                range_handles.add(h);
+                added++;
+            }
+        }
+    }
+
+    // ********** checking
+
+    // null if the pad agrees
+    String check() {
+        checks++;
+        if (stale) {
+            resync();
+        }
+
+        Marker[] ms = pad.getState().client_markers;
+        int live = 0;
+        for (int h = 0; h < ms.length; h++) {
+            Marker want = markers.get(h);
+            Marker got = ms[h];
+            if (got != null) {
+                live++;
+            }
+            if (want == null && got == null) {
+                continue;
+            }
+            if (want == null || got == null || want.pos != got.pos || want.before != got.before || want.valid != got.valid) {
+                return "marker " + h + " is " + describe(got) + ", expected " + describe(want);
+            }
+        }
+        if (live != markers.size()) {
+            return live + " markers, expected " + markers.size();
+        }
+
+        if (pad.getRangeCount() != ranges.size()) {
+            return pad.getRangeCount() + " ranges, expected " + ranges.size();
+        }
+        for (Integer h : range_handles) {
+            int[] want = ranges.get(h);
+            Range got = pad.getRange(h);
+            if (got.start != want[0] || got.end != want[1]) {
+                return "range " + got + ", expected [" + want[0] + ", " + want[1] + ")";
+            }
+        }
+
+        // and a window onto them, as a viewport would ask for
+        if (!ranges.isEmpty()) {
+            int len = pad.getState().client_text.length();
+            int from = random.nextInt(len + 1);
+            int to = from + random.nextInt(len - from + 1);
+            ArrayList<Integer> want = new ArrayList<Integer>();
+            for (Integer h : range_handles) {
+                int[] r = ranges.get(h);
+                if (r[0] < to && (r[1] > from || (r[0] == r[1] && r[0] >= from))) {
+                    want.add(h);
+                }
+            }
+            Range[] found = pad.getRanges(from, to);
+            ArrayList<Integer> got = new ArrayList<Integer>();
+            for (int i = 0; i < found.length; i++) {
+                if (i > 0 && found[i].start < found[i - 1].start) {
+                    return "ranges in [" + from + ", " + to + ") out of order at " + found[i];
+                }
+                got.add(found[i].handle);
+            }
+            Collections.sort(want);
+            Collections.sort(got);
+            if (!want.equals(got)) {
+                return "ranges in [" + from + ", " + to + ") are " + got + ", expected " + want;
+            }
+        }
+
+        return null;
+    }
+
+    private static String describe(Marker m) {
+        return (m == null) ? "unregistered" : m.pos + (m.before ? " before" : " after") + (m.valid ? "" : " (invalid)");
+    }
+}
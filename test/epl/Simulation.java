@@ -0,0 +1,643 @@
+package epl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// deterministic stress test: a number of Pads editing concurrently against a
+// SimServer, on a virtual clock driven by a seeded scheduler
+// every time a client has nothing outstanding its text is checked against the
+// server's text for its revision, and at the end everyone must have converged
+// on the server's head text; the same seed always replays the same run
+//
+// usage: Simulation [-clients n] [-edits n] [-seed n] [-latency min-max]
+//                   [-think max] [-doc max_len] [-text len] [-wire]
+//                   [-verify off|hash|sampled[:n]] [-journal dir]
+//                   [-drops n] [-restarts n] [-catchup n] [-cursors n]
+//                   [-markers n] [-ranges n]
+//   -clients  number of Pads (4)
+//   -edits    total local edits to make across all clients (100000)
+//   -seed     for the scheduler, and so for the whole run (1)
+//   -latency  one way network latency range in virtual ms (5-50)
+//   -think    most virtual ms between a client's updates (20)
+//   -doc      deletes are favoured once the text is longer than this (4096)
+//   -text     length of the text the pad starts with (1)
+//   -wire     round trip every message through its JSON text
+//   -verify   the Pads' own in-sync check on NEW_CHANGES (hash)
+//   -journal  journal each client under dir, and check at the end that
+//             what they recover from it is what they had
+//   -drops    connections dropped along the way, at random; the client
+//             carries on editing offline and reconnects (0)
+//   -restarts clients that go down along the way and come back as a new
+//             Pad from their journal, needs -journal (0)
+//   -catchup  the clients' max catch up on reconnecting (Pad's default)
+//   -cursors  most cursor moves a client broadcasts each time it edits
+//             while connected, some of them to where it already is (0)
+//   -markers  markers each client keeps registered, swapping one for
+//             another as it edits, checked against moving them one by one (0)
+//   -ranges   the same for tracked ranges, checked against a plain list (0)
+
+public class Simulation {
+    int client_count = 4;
+    long total_edits = 100000;
+    long seed = 1;
+    int min_latency = 5;
+    int max_latency = 50;
+    int max_think = 20;
+    int max_doc = 4096;
+    int initial_text = 1;
+    boolean wire = false;
+    Pad.VerifyMode verify_mode = Pad.VerifyMode.HASH;
+    int verify_interval = 100;
+    File journal_dir = null;
+    // small, so the runs go through plenty of snapshots
+    int journal_segment = 1 << 16;
+    int drops = 0;
+    int restarts = 0;
+    int max_catch_up = Pad.DEFAULT_MAX_CATCH_UP;
+    int max_cursors = 0;
+    int max_markers = 0;
+    int max_ranges = 0;
+
+    // edit counts at which the next drop or restart happens, to whichever
+    // client ticks next
+    private long[] drop_at;
+    private long[] restart_at;
+    private int drops_done = 0;
+    private int restarts_done = 0;
+
+    // its own, like eventsAt()
+    private Random cursor_random;
+    private Random tracker_random;
+
+    private SimScheduler scheduler;
+    private SimServer server;
+    private Client[] clients;
+
+    private long edits_made = 0;
+    private String failure = null;
+
+    // virtual ms from a revision being committed on the server to every
+    // client having received it
+    private long[] latencies = new long[1024];
+    private int latency_count = 0;
+    private long converged_rev = 0;
+
+    // slowest recovery from a journal
+    private long recovery_ns = 0;
+
+    public Simulation(String args[]) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String next = (i + 1 < args.length) ? args[i + 1] : null;
+
+            if (arg.equals("-clients") && next != null) {
+                client_count = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-edits") && next != null) {
+                total_edits = Long.parseLong(next);
+                i++;
+            } else if (arg.equals("-seed") && next != null) {
+                seed = Long.parseLong(next);
+                i++;
+            } else if (arg.equals("-latency") && next != null) {
+                String[] range = next.split("-");
+                min_latency = Integer.parseInt(range[0]);
+                max_latency = Integer.parseInt(range[range.length - 1]);
+                i++;
+            } else if (arg.equals("-think") && next != null) {
+                max_think = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-doc") && next != null) {
+                max_doc = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-text") && next != null) {
+                initial_text = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-verify") && next != null) {
+                String[] mode = next.split(":");
+                verify_mode = Pad.VerifyMode.valueOf(mode[0].toUpperCase());
+                if (mode.length > 1) {
+                    verify_interval = Integer.parseInt(mode[1]);
+                }
+                i++;
+            } else if (arg.equals("-journal") && next != null) {
+                journal_dir = new File(next);
+                i++;
+            } else if (arg.equals("-drops") && next != null) {
+                drops = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-restarts") && next != null) {
+                restarts = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-catchup") && next != null) {
+                max_catch_up = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-cursors") && next != null) {
+                max_cursors = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-markers") && next != null) {
+                max_markers = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-ranges") && next != null) {
+                max_ranges = Integer.parseInt(next);
+                i++;
+            } else if (arg.equals("-wire")) {
+                wire = true;
+            } else {
+                throw new IllegalArgumentException("unknown argument " + arg);
+            }
+        }
+
+        if (restarts > 0 && journal_dir == null) {
+            throw new IllegalArgumentException("-restarts needs -journal");
+        }
+    }
+
+    public static void main(String args[]) {
+        if (!new Simulation(args).run()) {
+            System.exit(1);
+        }
+    }
+
+    class Client {
+        final int index;
+        Pad pad;
+        SimConnection conn;
+
+        // like EPLTest's stress test, sending and receiving are each
+        // held off for a few updates at random
+        int send_delay = 0;
+        int recv_delay = 0;
+
+        boolean tick_scheduled = false;
+        long server_rev = 0;
+
+        // once it's been connected, it reconnects itself when dropped
+        boolean was_connected = false;
+
+        int cursor_start = 0;
+        int cursor_end = 0;
+
+        // the current Pad's markers and ranges, if any
+        SimTracker tracker = null;
+
+        Client(int index) {
+            this.index = index;
+            if (journal_dir != null) {
+                // start from scratch every run
+                File dir = journalDir();
+                if (dir.isDirectory()) {
+                    for (File f : dir.listFiles()) {
+                        f.delete();
+                    }
+                }
+            }
+            newPad();
+            newConnection();
+        }
+
+        // with its journal if there is one, so after a restart it picks up
+        // where the last one left off
+        void newPad() {
+            pad = new Pad(null, "", "t.sim" + index, "simpad", "sim");
+            pad.setVerifyMode(verify_mode, verify_interval);
+            pad.setMaxCatchUp(max_catch_up);
+            // a restarted Pad starts without any, as a new process would
+            tracker = (max_markers > 0 || max_ranges > 0)
+                ? new SimTracker(pad, max_markers, max_ranges, tracker_random) : null;
+            if (journal_dir != null) {
+                try {
+                    pad.setJournal(new PadJournal(journalDir(), journal_segment, PadJournal.DEFAULT_SYNC_INTERVAL));
+                } catch (IOException e) {
+                    throw new RuntimeException("couldn't open journal", e);
+                } catch (PadException e) {
+                    throw new RuntimeException("couldn't open journal", e);
+                }
+            }
+        }
+
+        void newConnection() {
+            conn = new SimConnection(pad, server);
+            conn.on_receive = new Runnable() {
+                public void run() {
+                    scheduleTick(1);
+                }
+            };
+        }
+
+        // the process goes down without a word to anyone, the journal's
+        // all that's left of it
+        void restart() throws IOException, PadException {
+            // nothing more reaches the old one
+            conn.on_receive = null;
+            conn.disconnect();
+            pad.getJournal().close();
+
+            newPad();
+            newConnection();
+            conn.open();
+        }
+
+        File journalDir() {
+            return new File(journal_dir, "client" + index);
+        }
+
+        // what a new Pad recovers from the journal must be what this one has
+        void checkJournal() throws IOException, PadException {
+            PadJournal journal = pad.getJournal();
+            if (journal == null) {
+                fail("client " + index + " lost its journal", null);
+                return;
+            }
+            journal.close();
+
+            long start = System.nanoTime();
+            PadJournal reopened = new PadJournal(journalDir(), journal_segment, PadJournal.DEFAULT_SYNC_INTERVAL);
+            Pad recovered = new Pad(null, "", "t.sim" + index, "simpad", "sim");
+            boolean picked_up = recovered.setJournal(reopened);
+            recovery_ns = Math.max(recovery_ns, System.nanoTime() - start);
+            reopened.close();
+
+            TextState want = pad.getState();
+            TextState got = recovered.getState();
+            if (!picked_up || got.server_rev != want.server_rev || !got.server_text.equals(want.server_text)
+                    || !got.client_text.equals(want.client_text)) {
+                fail("client " + index + " recovered rev " + got.server_rev + " from its journal, not " + want.server_rev
+                    + ", or different texts", null);
+            }
+        }
+
+        void scheduleTick(int delay) {
+            if (!tick_scheduled && failure == null) {
+                tick_scheduled = true;
+                scheduler.after(delay, new Runnable() {
+                    public void run() {
+                        tick_scheduled = false;
+                        tick();
+                    }
+                });
+            }
+        }
+
+        void tick() {
+            if (!pad.isConnected()) {
+                if (!was_connected) {
+                    // still waiting on CLIENT_VARS, which will wake us
+                    return;
+                }
+                if (!pad.isConnecting()) {
+                    // dropped, and the pad's noticed
+                    newConnection();
+                    try {
+                        conn.open();
+                    } catch (PadException e) {
+                        fail("client " + index + " couldn't reconnect", e);
+                        return;
+                    }
+                }
+            }
+            was_connected = true;
+
+            try {
+                boolean editing = edits_made < total_edits;
+
+                if (editing && drops_done < drop_at.length && edits_made >= drop_at[drops_done]) {
+                    drops_done++;
+                    conn.drop();
+                } else if (editing && restarts_done < restart_at.length && edits_made >= restart_at[restarts_done]) {
+                    restarts_done++;
+                    restart();
+                    return;
+                }
+
+                if (editing) {
+                    // offline too
+                    randomEdit();
+                    if (max_cursors > 0 && pad.isConnected()) {
+                        randomCursors();
+                    }
+                }
+
+                // once all the edits are made, just flush everything through
+                boolean is_sending = send_delay == 0 || !editing;
+                boolean is_receiving = recv_delay == 0 || !editing;
+                if (conn.isConnected()) {
+                    // including while catching up after reconnecting
+                    pad.update(is_sending, is_receiving);
+                }
+
+                send_delay = is_sending ? scheduler.between(0, 5) : send_delay - 1;
+                recv_delay = is_receiving ? scheduler.between(0, 5) : recv_delay - 1;
+
+                check();
+            } catch (PadException e) {
+                fail("client " + index + " failed", e);
+                return;
+            } catch (IOException e) {
+                fail("client " + index + " couldn't restart", e);
+                return;
+            } catch (RuntimeException e) {
+                fail("client " + index + " crashed", e);
+                return;
+            }
+
+            if (edits_made < total_edits || !isSettled()) {
+                scheduleTick(scheduler.between(1, max_think));
+            }
+        }
+
+        void randomEdit() throws PadException {
+            Random r = scheduler.random;
+            int len = pad.getState().client_text.length();
+            int pos = r.nextInt(len);
+            int max_removing = len - 1 - pos;
+            int removing = 0;
+            String new_s = "";
+
+            // the final newline stays put, there's always one
+            int kind = r.nextInt(len > Math.max(max_doc, initial_text) ? 2 : 4);
+            if (kind == 0 || kind == 1) {
+                removing = Math.min(max_removing, r.nextInt(8) + (kind == 0 ? 1 : 0));
+            }
+            if (kind != 0) {
+                new_s = randomText(r, 1 + r.nextInt(8));
+            }
+
+            Rope text = pad.getState().client_text;
+            pad.makeChange(pos, removing, new_s);
+            edits_made++;
+
+            if (tracker != null) {
+                try {
+                    tracker.edited(text, pos, removing, new_s);
+                } catch (ChangesetException e) {
+                    throw new PadException("couldn't follow edit", e);
+                }
+                tracker.churn();
+            }
+        }
+
+        // a burst of moves, as a caret being dragged about sends
+        void randomCursors() throws PadException {
+            int len = pad.getState().client_text.length();
+            int n = cursor_random.nextInt(max_cursors + 1);
+            for (int i = 0; i < n; i++) {
+                if (cursor_random.nextInt(4) != 0) {
+                    cursor_start = cursor_random.nextInt(len);
+                    cursor_end = cursor_start + cursor_random.nextInt(Math.min(8, len - cursor_start) + 1);
+                }
+                pad.broadcastCursor(cursor_start, cursor_end);
+            }
+        }
+
+        boolean isSettled() {
+            return pad.isConnected() && !pad.isAwaitingAck() && !pad.isSendPending() && server_rev == server.headRev();
+        }
+
+        // with nothing in flight the client's text must be exactly the
+        // server's text at the client's revision
+        void check() {
+            TextState ts = pad.getState();
+            server_rev = ts.server_rev;
+
+            if (!pad.isAwaitingAck() && !pad.isSendPending()) {
+                // by hash, as comparing whole texts every update would
+                // swamp everything else on large ones; the final check
+                // compares them in full
+                Rope expected = server.textAt(ts.server_rev);
+                if (expected.length() != ts.client_text.length() || expected.fingerprint() != ts.client_fingerprint) {
+                    fail("client " + index + " out of sync at rev " + ts.server_rev
+                        + ", expected\n'" + expected + "'\nclient has\n'" + ts.client_text + "'", null);
+                }
+            }
+
+            if (tracker != null) {
+                String err = tracker.check();
+                if (err != null) {
+                    fail("client " + index + " at rev " + ts.server_rev + ": " + err, null);
+                }
+            }
+
+            trackConvergence();
+        }
+    }
+
+    static String randomText(Random r, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(r.nextInt(10) == 0 ? '\n' : (char) ('a' + r.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    // n edit counts to do something at, from their own random numbers so
+    // that runs without them are as they always were
+    private long[] eventsAt(int n, long salt) {
+        Random r = new Random(seed * 31 + salt);
+        long[] at = new long[n];
+        for (int i = 0; i < n; i++) {
+            at[i] = (long) (r.nextDouble() * total_edits);
+        }
+        Arrays.sort(at);
+        return at;
+    }
+
+    private void trackConvergence() {
+        long min_rev = Long.MAX_VALUE;
+        for (Client c : clients) {
+            min_rev = Math.min(min_rev, c.server_rev);
+        }
+
+        for (long rev = converged_rev + 1; rev <= min_rev; rev++) {
+            if (latency_count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latency_count * 2);
+            }
+            latencies[latency_count++] = scheduler.now() - server.timeOf(rev);
+        }
+
+        if (min_rev > converged_rev) {
+            converged_rev = min_rev;
+            // nobody can base a change on anything older
+            server.forgetBefore(min_rev);
+        }
+    }
+
+    private void fail(String msg, Throwable e) {
+        if (failure == null) {
+            failure = msg + " at " + scheduler.now() + "ms";
+            if (e != null) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // returns true if all the clients converged
+    public boolean run() {
+        scheduler = new SimScheduler(seed);
+        server = new SimServer(scheduler, "simpad", randomText(new Random(seed), initial_text - 1) + "\n");
+        server.min_latency = min_latency;
+        server.max_latency = max_latency;
+        server.wire = wire;
+
+        drop_at = eventsAt(drops, 1);
+        restart_at = eventsAt(restarts, 2);
+        cursor_random = new Random(seed * 31 + 3);
+        tracker_random = new Random(seed * 31 + 4);
+
+        clients = new Client[client_count];
+        for (int i = 0; i < client_count; i++) {
+            clients[i] = new Client(i);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            for (Client c : clients) {
+                c.conn.open();
+            }
+
+            while (failure == null && scheduler.runNext()) {
+                // on_receive and the ticks keep things going until
+                // everyone has settled
+            }
+        } catch (PadException e) {
+            fail("couldn't connect", e);
+        } catch (RuntimeException e) {
+            fail("server crashed", e);
+        }
+
+        long wall_ns = System.nanoTime() - start;
+
+        if (failure == null) {
+            Rope head = server.headText();
+            for (Client c : clients) {
+                TextState ts = c.pad.getState();
+                if (ts.server_rev != server.headRev() || !head.equals(ts.client_text)) {
+                    fail("client " + c.index + " didn't converge, at rev " + ts.server_rev + " of " + server.headRev(), null);
+                }
+            }
+            checkLines(clients[0].pad.getState().client_text);
+        }
+
+        if (failure == null && journal_dir != null) {
+            for (Client c : clients) {
+                try {
+                    c.checkJournal();
+                } catch (IOException e) {
+                    fail("client " + c.index + " couldn't recover from its journal", e);
+                } catch (PadException e) {
+                    fail("client " + c.index + " couldn't recover from its journal", e);
+                }
+            }
+        }
+
+        report(wall_ns);
+
+        for (Client c : clients) {
+            c.pad.disconnect();
+        }
+
+        return failure == null;
+    }
+
+    // the line lookups on a text that got where it is by a lot of edits,
+    // against scanning it
+    private void checkLines(Rope text) {
+        String s = text.toString();
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                if (text.offsetOfLine(line) != start || text.lineOfOffset(i) != line
+                        || !text.line(line).toString().equals(s.substring(start, i + 1))) {
+                    fail("line " + line + " is wrong, at " + start, null);
+                    return;
+                }
+                line++;
+                start = i + 1;
+            }
+        }
+        if (text.lineCount() != line || text.offsetOfLine(line) != s.length()) {
+            fail("counted " + line + " lines, the text says " + text.lineCount(), null);
+        }
+    }
+
+    private void report(long wall_ns) {
+        double wall_s = wall_ns / 1e9;
+
+        System.out.println("********");
+        System.out.println(client_count + " clients, seed " + seed + ", latency " + min_latency + "-" + max_latency
+            + "ms, verify " + verify_mode.toString().toLowerCase()
+            + (verify_mode == Pad.VerifyMode.SAMPLED ? ":" + verify_interval : "") + (wire ? ", over the wire" : ""));
+        System.out.println("edits:       " + edits_made + " (" + String.format("%.0f", edits_made / wall_s) + "/s)");
+        System.out.println("revisions:   " + server.headRev() + " (" + String.format("%.0f", server.headRev() / wall_s) + "/s)");
+        System.out.println("messages:    " + server.messages_to_server + " to server, " + server.messages_to_clients + " to clients");
+        if (drops > 0 || restarts > 0) {
+            System.out.println("reconnects:  " + drops_done + " drops, " + restarts_done + " restarts, "
+                + server.reconnects + " caught up, max catch up " + max_catch_up);
+        }
+        System.out.println("time:        " + scheduler.now() + "ms simulated, " + String.format("%.0f", wall_ns / 1e6) + "ms wall, "
+            + scheduler.eventsRun() + " events");
+
+        if (latency_count > 0) {
+            long[] sorted = Arrays.copyOf(latencies, latency_count);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long l : sorted) {
+                sum += l;
+            }
+            System.out.println("convergence: mean " + String.format("%.1f", (double) sum / latency_count)
+                + "ms, p50 " + sorted[latency_count / 2]
+                + "ms, p99 " + sorted[(int) (latency_count * 0.99)]
+                + "ms, max " + sorted[latency_count - 1] + "ms (simulated, commit to every client)");
+        }
+
+        long inbox_max = 0;
+        for (Client c : clients) {
+            inbox_max = Math.max(inbox_max, c.pad.getInbox().maxDepth());
+        }
+        System.out.println("inbox:       max depth " + inbox_max);
+        if (max_cursors > 0) {
+            long moves = 0;
+            long sent = 0;
+            long superseded = 0;
+            for (Client c : clients) {
+                moves += c.pad.getCursorBroadcaster().moveCount();
+                sent += c.pad.getCursorBroadcaster().sendCount();
+                superseded += c.pad.getSupersededCursorCount();
+            }
+            System.out.println("cursors:     " + moves + " moves, " + sent + " sent, "
+                + superseded + " received and superseded");
+        }
+        if (max_markers > 0 || max_ranges > 0) {
+            long added = 0;
+            long removed = 0;
+            long checks = 0;
+            for (Client c : clients) {
+                added += c.tracker.added;
+                removed += c.tracker.removed;
+                checks += c.tracker.checks;
+            }
+            System.out.println("tracked:     " + added + " added, " + removed + " removed, " + checks
+                + " checks (markers and ranges, the latest Pads only)");
+        }
+        System.out.println("text:        " + server.headText().length() + " chars");
+        if (journal_dir != null) {
+            PadJournal journal = clients[0].pad.getJournal();
+            System.out.println("journal:     " + (journal == null ? "lost" : journal.recordCount() + " records, "
+                + journal.snapshotCount() + " snapshots (client 0), ")
+                + String.format("%.1f", recovery_ns / 1e6) + "ms slowest recovery");
+        }
+
+        if (failure == null) {
+            System.out.println("client_texts are equal");
+        } else {
+            System.out.println("ERR: " + failure);
+            System.out.println("rerun with -seed " + seed + " to reproduce");
+        }
+        System.out.println("********");
+    }
+}